@@ -0,0 +1,107 @@
+package gabilheri.com.inboxdashclock;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Circuit breaker of each account's labels query, so an account whose query keeps failing
+ * doesn't cost a binder call and an exception on every update.
+ * <p>
+ * After a failure the account isn't queried until its backoff ran out, then a single query
+ * decides whether it's healthy again. Transient failures, e.g. the Gmail process dying, back
+ * off exponentially from {@link #TRANSIENT_BACKOFF_MS} up to {@link #MAX_TRANSIENT_BACKOFF_MS}.
+ * Permanent ones, e.g. a permission denial or an account Gmail has no labels for, won't go
+ * away by themselves and are only retried every {@link #PERMANENT_BACKOFF_MS}, or right away
+ * after {@link #reset()} when the accounts or Gmail changed. Thread safe.
+ */
+final class AccountBreaker {
+
+    static final long TRANSIENT_BACKOFF_MS = 30 * 1000;
+    static final long MAX_TRANSIENT_BACKOFF_MS = 30 * 60 * 1000;
+    static final long PERMANENT_BACKOFF_MS = 6 * 60 * 60 * 1000;
+
+    private static final class State {
+        int failures;
+        /** Uptime before which the account isn't queried. */
+        long openUntil;
+    }
+
+    private final HashMap<String, State> mStates = new HashMap<>();
+
+    /**
+     * @param now in the {@link android.os.SystemClock#uptimeMillis()} time base
+     * @return false if the account's query must be skipped
+     */
+    synchronized boolean allowQuery(String account, long now) {
+        State state = mStates.get(account);
+        return state == null || now >= state.openUntil;
+    }
+
+    /**
+     * @return true if the account's last query failed, it's retried once
+     * {@link #allowQuery(String, long)} says so
+     */
+    synchronized boolean hasFailed(String account) {
+        return mStates.containsKey(account);
+    }
+
+    synchronized void onSuccess(String account) {
+        mStates.remove(account);
+    }
+
+    /**
+     * @param permanent true if retrying won't help until something changes
+     * @return how long the account won't be queried
+     */
+    synchronized long onFailure(String account, boolean permanent, long now) {
+        State state = mStates.get(account);
+        if (state == null) {
+            state = new State();
+            mStates.put(account, state);
+        }
+        state.failures++;
+        long backoff;
+        if (permanent) {
+            backoff = PERMANENT_BACKOFF_MS;
+        } else {
+            int doublings = Math.min(state.failures - 1, 16);
+            backoff = Math.min(TRANSIENT_BACKOFF_MS << doublings, MAX_TRANSIENT_BACKOFF_MS);
+        }
+        state.openUntil = now + backoff;
+        return backoff;
+    }
+
+    /**
+     * @return the uptime after now the next account can be queried again at,
+     * {@link Long#MAX_VALUE} if no account is held back past now
+     */
+    synchronized long getNextRetryTime(long now) {
+        long next = Long.MAX_VALUE;
+        for (State state : mStates.values()) {
+            if (state.openUntil > now) {
+                next = Math.min(next, state.openUntil);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Forgets the accounts that aren't in the given sorted array, e.g. deselected ones.
+     */
+    synchronized void retain(String[] accounts) {
+        Iterator<String> it = mStates.keySet().iterator();
+        while (it.hasNext()) {
+            if (Arrays.binarySearch(accounts, it.next()) < 0) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Lets every account be queried again.
+     */
+    synchronized void reset() {
+        mStates.clear();
+    }
+}
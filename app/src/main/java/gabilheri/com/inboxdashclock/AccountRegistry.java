@@ -0,0 +1,138 @@
+package gabilheri.com.inboxdashclock;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the Google accounts on the device, their labels URIs and which of them are selected.
+ * <p>
+ * Asking {@link AccountManager} for the accounts is a binder call, so the names are only loaded
+ * again when an {@link OnAccountsUpdateListener} reports a change.
+ */
+final class AccountRegistry implements OnAccountsUpdateListener {
+
+    interface Listener {
+        /**
+         * Called on the registration handler's thread after the accounts changed.
+         */
+        void onAccountsChanged();
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final ConcurrentHashMap<String, Uri> mLabelsUris = new ConcurrentHashMap<>();
+
+    /** Sorted names of the Google accounts, null until loaded or after a change. */
+    private volatile String[] mAccounts;
+
+    /** Result of the last {@link #getSelectedAccounts(InboxConfig)} and what it was computed from. */
+    private volatile Selection mSelection;
+
+    private boolean mRegistered;
+
+    private static final class Selection {
+        final InboxConfig config;
+        final String[] accounts;
+        final String[] selected;
+
+        Selection(InboxConfig config, String[] accounts, String[] selected) {
+            this.config = config;
+            this.accounts = accounts;
+            this.selected = selected;
+        }
+    }
+
+    AccountRegistry(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+    }
+
+    /**
+     * Starts listening for account changes.
+     *
+     * @param handler where the account change callbacks are delivered
+     */
+    void register(Handler handler) {
+        if (!mRegistered) {
+            AccountManager.get(mContext).addOnAccountsUpdatedListener(this, handler, false);
+            mRegistered = true;
+        }
+    }
+
+    void unregister() {
+        if (mRegistered) {
+            AccountManager.get(mContext).removeOnAccountsUpdatedListener(this);
+            mRegistered = false;
+        }
+    }
+
+    @Override
+    public void onAccountsUpdated(Account[] accounts) {
+        // The listener gets every account type, just reload ours on next use.
+        mAccounts = null;
+        mSelection = null;
+        mLabelsUris.clear();
+        if (mListener != null) {
+            mListener.onAccountsChanged();
+        }
+    }
+
+    /**
+     * @return the sorted names of every Google account
+     */
+    String[] getAllAccounts() {
+        String[] accounts = mAccounts;
+        if (accounts == null) {
+            accounts = InboxExtension.getAllAccountNames(mContext);
+            Arrays.sort(accounts);
+            mAccounts = accounts;
+        }
+        return accounts;
+    }
+
+    /**
+     * @return the sorted names of the accounts selected by the config that still exist
+     */
+    String[] getSelectedAccounts(InboxConfig config) {
+        String[] accounts = getAllAccounts();
+        Selection selection = mSelection;
+        if (selection != null && selection.config == config && selection.accounts == accounts) {
+            return selection.selected;
+        }
+
+        String[] selected;
+        if (config.accounts == null) {
+            selected = accounts;
+        } else {
+            ArrayList<String> existing = new ArrayList<>(config.accounts.length);
+            for (String account : config.accounts) {
+                if (Arrays.binarySearch(accounts, account) >= 0) {
+                    existing.add(account);
+                }
+            }
+            selected = existing.toArray(new String[existing.size()]);
+        }
+        mSelection = new Selection(config, accounts, selected);
+        return selected;
+    }
+
+    /**
+     * @return the parsed {@link InboxContract.Labels#getLabelsUri(String)} of the account
+     */
+    Uri getLabelsUri(String account) {
+        Uri uri = mLabelsUris.get(account);
+        if (uri == null) {
+            uri = InboxContract.Labels.getLabelsUri(account);
+            mLabelsUris.put(account, uri);
+        }
+        return uri;
+    }
+}
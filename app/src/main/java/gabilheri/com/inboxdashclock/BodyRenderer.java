@@ -0,0 +1,119 @@
+package gabilheri.com.inboxdashclock;
+
+/**
+ * Renders the expanded body, one "Label (count)" line per entry, in a single pass.
+ * <p>
+ * Lines are added in display order, account lines first and label lines after them. Each
+ * formatted line is cached by position so an unchanged line isn't formatted again, and when
+ * nothing changed since the last render the previous body is returned as is. Rendering stops
+ * at a hard character budget instead of building text DashClock would throw away.
+ * Instances are meant to be reused across refreshes and are not thread safe.
+ */
+final class BodyRenderer {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final int mMaxLength;
+    private final StringBuilder mBuilder;
+
+    private String[] mLabels = new String[INITIAL_CAPACITY];
+    private int[] mCounts = new int[INITIAL_CAPACITY];
+    private String[] mLines = new String[INITIAL_CAPACITY];
+
+    private int mLineCount;
+    private int mLength;
+    private boolean mFull;
+    private boolean mDirty = true;
+
+    private String mLastBody;
+    private int mLastLineCount;
+
+    /**
+     * @param maxLength the most characters the body may have
+     */
+    BodyRenderer(int maxLength) {
+        mMaxLength = maxLength;
+        mBuilder = new StringBuilder(Math.min(maxLength, 256));
+    }
+
+    /**
+     * Starts a new body.
+     */
+    void begin() {
+        mLineCount = 0;
+        mLength = 0;
+        mFull = false;
+    }
+
+    /**
+     * Appends a line.
+     *
+     * @return false if the line didn't fit, in which case every following line is dropped too
+     */
+    boolean addLine(String label, int count) {
+        if (mFull) {
+            return false;
+        }
+        final int index = mLineCount;
+        ensureCapacity(index + 1);
+
+        String line = mLines[index];
+        if (line == null || mCounts[index] != count || !equals(mLabels[index], label)) {
+            line = (label != null ? label : "") + " (" + count + ")";
+            mLines[index] = line;
+            mLabels[index] = label;
+            mCounts[index] = count;
+            mDirty = true;
+        }
+
+        int length = mLength + (index > 0 ? 1 : 0) + line.length();
+        if (length > mMaxLength) {
+            mFull = true;
+            return false;
+        }
+        mLength = length;
+        mLineCount++;
+        return true;
+    }
+
+    /**
+     * @return the rendered body, the same instance as last time if nothing changed
+     */
+    String finish() {
+        if (!mDirty && mLastBody != null && mLineCount == mLastLineCount) {
+            return mLastBody;
+        }
+        final StringBuilder body = mBuilder;
+        body.setLength(0);
+        for (int i = 0; i < mLineCount; i++) {
+            if (i > 0) {
+                body.append('\n');
+            }
+            body.append(mLines[i]);
+        }
+        mLastBody = body.toString();
+        mLastLineCount = mLineCount;
+        mDirty = false;
+        return mLastBody;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mLines.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mLines.length * 2);
+        String[] labels = new String[newCapacity];
+        int[] counts = new int[newCapacity];
+        String[] lines = new String[newCapacity];
+        System.arraycopy(mLabels, 0, labels, 0, mLabels.length);
+        System.arraycopy(mCounts, 0, counts, 0, mCounts.length);
+        System.arraycopy(mLines, 0, lines, 0, mLines.length);
+        mLabels = labels;
+        mCounts = counts;
+        mLines = lines;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
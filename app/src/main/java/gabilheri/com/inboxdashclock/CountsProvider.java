@@ -0,0 +1,313 @@
+package gabilheri.com.inboxdashclock;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Read-only access to the counts of the last extension update, so launchers and other
+ * widgets don't each have to query the Gmail provider. Guarded by {@link #PERMISSION_READ}.
+ * <p>
+ * Served from memory: the extension hands each update's counts to {@link #publish(Context, Counts)},
+ * which notifies {@link #CONTENT_URI} when they changed. The counts are also saved to a file,
+ * so a query that starts the process gets the counts of the last update before it.
+ */
+public class CountsProvider extends ContentProvider {
+    private static final String TAG = CountsProvider.class.getSimpleName();
+
+    public static final String AUTHORITY = "gabilheri.com.inboxdashclock.counts";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+
+    /** Dangerous, account names and unread counts are personal. */
+    public static final String PERMISSION_READ = "gabilheri.com.inboxdashclock.permission.READ_COUNTS";
+
+    /**
+     * One row per account with label information.
+     */
+    public static final class Accounts {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(CountsProvider.CONTENT_URI, "accounts");
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.gabilheri.inbox.account";
+
+        public static final String ACCOUNT = "account";
+        /** Unread conversations of the sectioned inbox, or the Inbox without sections. */
+        public static final String UNREAD = "unread";
+
+        static final String[] COLUMNS = {ACCOUNT, UNREAD};
+
+        private Accounts() {}
+    }
+
+    /**
+     * One row per account and label: the inbox sections, then the labels picked in the
+     * settings. Hidden sections count 0.
+     */
+    public static final class Labels {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(CountsProvider.CONTENT_URI, "labels");
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.gabilheri.inbox.label";
+
+        public static final String ACCOUNT = "account";
+        /** See {@link InboxContract.Labels#CANONICAL_NAME}. */
+        public static final String CANONICAL_NAME = "canonicalName";
+        /** Display name, may be null. */
+        public static final String NAME = "name";
+        public static final String UNREAD = "unread";
+
+        static final String[] COLUMNS = {ACCOUNT, CANONICAL_NAME, NAME, UNREAD};
+
+        private Labels() {}
+    }
+
+    private static final int MATCH_ACCOUNTS = 1;
+    private static final int MATCH_LABELS = 2;
+
+    private static final UriMatcher sMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    static {
+        sMatcher.addURI(AUTHORITY, "accounts", MATCH_ACCOUNTS);
+        sMatcher.addURI(AUTHORITY, "labels", MATCH_LABELS);
+    }
+
+    private static final String FILE_NAME = "counts.provider";
+
+    /** Null until read from the file or published in this process. */
+    private static volatile Counts sCounts;
+
+    /**
+     * Immutable rows of both tables, each row an array of column values.
+     */
+    static final class Counts {
+        private static final int VERSION = 1;
+
+        static final Counts EMPTY = new Counts(new Object[0][], new Object[0][]);
+
+        final Object[][] accounts;
+        final Object[][] labels;
+
+        private Counts(Object[][] accounts, Object[][] labels) {
+            this.accounts = accounts;
+            this.labels = labels;
+        }
+
+        /**
+         * @param results the counts of each account, null entries are skipped
+         */
+        static Counts from(LabelAggregator.AccountCounts[] results) {
+            int accountCount = 0;
+            int labelCount = 0;
+            for (LabelAggregator.AccountCounts counts : results) {
+                if (counts != null) {
+                    accountCount++;
+                    labelCount += LabelAggregator.SLOT_COUNT + counts.tracked.size();
+                }
+            }
+
+            Object[][] accounts = new Object[accountCount][];
+            Object[][] labels = new Object[labelCount][];
+            int a = 0;
+            int l = 0;
+            for (LabelAggregator.AccountCounts counts : results) {
+                if (counts == null) {
+                    continue;
+                }
+                accounts[a++] = new Object[]{counts.account, counts.getUnread()};
+                for (int slot = 0; slot < LabelAggregator.SLOT_COUNT; slot++) {
+                    labels[l++] = new Object[]{counts.account, LabelAggregator.SLOT_CANONICAL_NAMES[slot],
+                            counts.labelNames[slot], counts.unread[slot]};
+                }
+                for (int i = 0; i < counts.tracked.size(); i++) {
+                    labels[l++] = new Object[]{counts.account, counts.tracked.getCanonicalName(i),
+                            counts.trackedNames[i], counts.trackedUnread[i]};
+                }
+            }
+            return new Counts(accounts, labels);
+        }
+
+        boolean sameAs(Counts other) {
+            return Arrays.deepEquals(accounts, other.accounts) && Arrays.deepEquals(labels, other.labels);
+        }
+
+        /**
+         * @return the saved counts, {@link #EMPTY} if there are none or they can't be read
+         */
+        static Counts read(AtomicFile file) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(file.readFully()));
+                if (in.readInt() != VERSION) {
+                    return EMPTY;
+                }
+                Object[][] accounts = new Object[in.readInt()][];
+                for (int i = 0; i < accounts.length; i++) {
+                    accounts[i] = new Object[]{in.readUTF(), in.readInt()};
+                }
+                Object[][] labels = new Object[in.readInt()][];
+                for (int i = 0; i < labels.length; i++) {
+                    labels[i] = new Object[]{in.readUTF(), in.readUTF(),
+                            in.readBoolean() ? in.readUTF() : null, in.readInt()};
+                }
+                return new Counts(accounts, labels);
+            } catch (FileNotFoundException e) {
+                return EMPTY;
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable counts", e);
+                return EMPTY;
+            }
+        }
+
+        void write(AtomicFile file) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            FileOutputStream out = null;
+            try {
+                DataOutputStream data = new DataOutputStream(bytes);
+                data.writeInt(VERSION);
+                data.writeInt(accounts.length);
+                for (Object[] row : accounts) {
+                    data.writeUTF((String) row[0]);
+                    data.writeInt((Integer) row[1]);
+                }
+                data.writeInt(labels.length);
+                for (Object[] row : labels) {
+                    data.writeUTF((String) row[0]);
+                    data.writeUTF((String) row[1]);
+                    data.writeBoolean(row[2] != null);
+                    if (row[2] != null) {
+                        data.writeUTF((String) row[2]);
+                    }
+                    data.writeInt((Integer) row[3]);
+                }
+                data.flush();
+
+                out = file.startWrite();
+                bytes.writeTo(out);
+                file.finishWrite(out);
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't save counts", e);
+                if (out != null) {
+                    file.failWrite(out);
+                }
+            }
+        }
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * @return the counts published last, read from the file if none were published in this
+     * process yet
+     */
+    private static synchronized Counts getCounts(Context context) {
+        if (sCounts == null) {
+            sCounts = Counts.read(getFile(context));
+        }
+        return sCounts;
+    }
+
+    /**
+     * Makes the counts of an update available, notifying observers if they changed.
+     */
+    static void publish(Context context, Counts counts) {
+        synchronized (CountsProvider.class) {
+            if (counts.sameAs(getCounts(context))) {
+                return;
+            }
+            sCounts = counts;
+            counts.write(getFile(context));
+        }
+        context.getContentResolver().notifyChange(CONTENT_URI, null, false);
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        Counts counts = getCounts(getContext());
+        MatrixCursor cursor;
+        switch (sMatcher.match(uri)) {
+            case MATCH_ACCOUNTS:
+                cursor = toCursor(Accounts.COLUMNS, counts.accounts, projection);
+                break;
+            case MATCH_LABELS:
+                cursor = toCursor(Labels.COLUMNS, counts.labels, projection);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        // Either table changing notifies the root URI
+        cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        return cursor;
+    }
+
+    /**
+     * Selections and sort orders aren't supported, rows come in the extension's order.
+     */
+    private static MatrixCursor toCursor(String[] columns, Object[][] rows, String[] projection) {
+        if (projection == null) {
+            projection = columns;
+        }
+        int[] indices = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            indices[i] = Arrays.asList(columns).indexOf(projection[i]);
+            if (indices[i] < 0) {
+                throw new IllegalArgumentException("Unknown column " + projection[i]);
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection, rows.length);
+        for (Object[] row : rows) {
+            Object[] values = new Object[indices.length];
+            for (int i = 0; i < indices.length; i++) {
+                values[i] = row[indices[i]];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        switch (sMatcher.match(uri)) {
+            case MATCH_ACCOUNTS:
+                return Accounts.CONTENT_TYPE;
+            case MATCH_LABELS:
+                return Labels.CONTENT_TYPE;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Read only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only");
+    }
+}
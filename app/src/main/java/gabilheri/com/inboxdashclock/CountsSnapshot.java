@@ -0,0 +1,92 @@
+package gabilheri.com.inboxdashclock;
+
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The last published result, persisted so it can be shown again right after the process
+ * was restarted, before the Gmail provider answered.
+ * <p>
+ * Stored as a few bytes behind a format version. A snapshot written by another version is
+ * ignored, the next update replaces it.
+ */
+final class CountsSnapshot {
+    private static final String TAG = CountsSnapshot.class.getSimpleName();
+
+    private static final int VERSION = 1;
+
+    final int unread;
+    final String body;
+    /** Wall clock time the snapshot was taken at. */
+    final long savedAt;
+
+    CountsSnapshot(int unread, String body, long savedAt) {
+        this.unread = unread;
+        this.body = body;
+        this.savedAt = savedAt;
+    }
+
+    /**
+     * @param now wall clock time
+     * @return false if the snapshot is older than maxAgeMs, or was taken in the future because
+     * the clock was set back
+     */
+    boolean isFresh(long now, long maxAgeMs) {
+        long age = now - savedAt;
+        return age >= 0 && age <= maxAgeMs;
+    }
+
+    /**
+     * @return the stored snapshot, null if there's none or it can't be read
+     */
+    static CountsSnapshot read(AtomicFile file) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(file.readFully()));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            long savedAt = in.readLong();
+            int unread = in.readInt();
+            String body = in.readBoolean() ? in.readUTF() : null;
+            return new CountsSnapshot(unread, body, savedAt);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable snapshot", e);
+            return null;
+        }
+    }
+
+    void write(AtomicFile file) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (body != null ? body.length() : 0));
+        FileOutputStream out = null;
+        try {
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(VERSION);
+            data.writeLong(savedAt);
+            data.writeInt(unread);
+            data.writeBoolean(body != null);
+            if (body != null) {
+                data.writeUTF(body);
+            }
+            data.flush();
+
+            out = file.startWrite();
+            bytes.writeTo(out);
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't save snapshot", e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+}
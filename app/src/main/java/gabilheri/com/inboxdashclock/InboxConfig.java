@@ -0,0 +1,67 @@
+package gabilheri.com.inboxdashclock;
+
+import android.content.SharedPreferences;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the extension settings.
+ * <p>
+ * Compiled once whenever one of the settings changes so an update reads a single
+ * reference instead of going through {@link SharedPreferences} lookups.
+ */
+final class InboxConfig {
+
+    /**
+     * Selected account names sorted alphabetically, or null if the user never picked any,
+     * in which case every Google account is shown.
+     */
+    final String[] accounts;
+
+    /** {@link InboxExtension#PREF_ALL} */
+    final boolean showAllLabels;
+
+    /** {@link InboxExtension#PREF_SHOW_ACCOUNT} */
+    final boolean showAccounts;
+
+    /** {@link InboxExtension#HIDE_LABELS} as a {@link LabelAggregator} slot mask */
+    final int hiddenMask;
+
+    /** {@link InboxExtension#PREF_TRACKED_LABELS} */
+    final TrackedLabels trackedLabels;
+
+    private InboxConfig(String[] accounts, boolean showAllLabels, boolean showAccounts, int hiddenMask,
+                        TrackedLabels trackedLabels) {
+        this.accounts = accounts;
+        this.showAllLabels = showAllLabels;
+        this.showAccounts = showAccounts;
+        this.hiddenMask = hiddenMask;
+        this.trackedLabels = trackedLabels;
+    }
+
+    static InboxConfig fromPreferences(SharedPreferences sp) {
+        String[] accounts = null;
+        Set<String> selected = sp.getStringSet(InboxExtension.PREF_ACCOUNTS, null);
+        if (selected != null) {
+            accounts = selected.toArray(new String[selected.size()]);
+            Arrays.sort(accounts);
+        }
+        return new InboxConfig(accounts,
+                sp.getBoolean(InboxExtension.PREF_ALL, true),
+                sp.getBoolean(InboxExtension.PREF_SHOW_ACCOUNT, true),
+                LabelAggregator.hiddenMask(sp.getStringSet(InboxExtension.HIDE_LABELS, null)),
+                TrackedLabels.fromSet(sp.getStringSet(InboxExtension.PREF_TRACKED_LABELS, null)));
+    }
+
+    /**
+     * @return true if the given preference key is part of the config
+     */
+    static boolean isConfigKey(String key) {
+        return InboxExtension.PREF_ACCOUNTS.equals(key)
+                || InboxExtension.PREF_ALL.equals(key)
+                || InboxExtension.PREF_SHOW_ACCOUNT.equals(key)
+                || InboxExtension.HIDE_LABELS.equals(key)
+                || InboxExtension.PREF_TRACKED_LABELS.equals(key);
+    }
+}
@@ -0,0 +1,94 @@
+package gabilheri.com.inboxdashclock;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.crashlytics.android.Crashlytics;
+
+import io.fabric.sdk.android.Fabric;
+
+/**
+ * Sets up crash reporting.
+ * <p>
+ * With {@link BuildConfig#DEFER_CRASH_REPORTING}, the default, Crashlytics is initialized on
+ * a background thread started with the process. DashClock binds the extension in a cold
+ * process far more often than the settings are opened, so initializing it on the main thread
+ * would sit in front of the first update. Starting right away still reports crashes of that
+ * first update, unless they come before the initialization finished.
+ */
+public class InboxDashClockApp extends Application {
+
+    /** Uptime this process was created at, 0 if the application wasn't created through us. */
+    private static long sCreatedAt;
+
+    /**
+     * True once something other than the extension was started in this process, the
+     * extension's bind then doesn't include the process start.
+     */
+    private static volatile boolean sWarm;
+
+    private final ActivityLifecycleCallbacks mFirstActivityCallbacks = new ActivityLifecycleCallbacks() {
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            sWarm = true;
+            unregisterActivityLifecycleCallbacks(this);
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {}
+
+        @Override
+        public void onActivityResumed(Activity activity) {}
+
+        @Override
+        public void onActivityPaused(Activity activity) {}
+
+        @Override
+        public void onActivityStopped(Activity activity) {}
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {}
+    };
+
+    @Override
+    public void onCreate() {
+        sCreatedAt = SystemClock.uptimeMillis();
+        super.onCreate();
+        startCrashReporting(BuildConfig.DEFER_CRASH_REPORTING);
+        registerActivityLifecycleCallbacks(mFirstActivityCallbacks);
+    }
+
+    private void startCrashReporting(boolean async) {
+        if (!async) {
+            Fabric.with(this, new Crashlytics());
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                Fabric.with(InboxDashClockApp.this, new Crashlytics());
+            }
+        }, "Crash reporting init");
+        thread.start();
+    }
+
+    /**
+     * Called by the extension when it's created.
+     *
+     * @return the uptime the extension's bind started at: the process creation if the process
+     * was started for it, now otherwise
+     */
+    static long onExtensionCreated() {
+        long now = SystemClock.uptimeMillis();
+        boolean cold = sCreatedAt != 0 && !sWarm;
+        sWarm = true;
+        return cold ? sCreatedAt : now;
+    }
+}
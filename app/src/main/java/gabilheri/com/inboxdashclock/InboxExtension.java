@@ -5,20 +5,34 @@ import android.accounts.AccountManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.text.TextUtils;
+import android.support.v4.util.AtomicFile;
 import android.util.Log;
-import android.util.Pair;
 
 import com.google.android.apps.dashclock.api.DashClockExtension;
 import com.google.android.apps.dashclock.api.ExtensionData;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -32,18 +46,146 @@ public class InboxExtension extends DashClockExtension {
     public static final String PREF_ALL = "pref_show_all";
     public static final String PREF_SHOW_ACCOUNT = "pref_show_accounts";
 
-    public static final String LABEL_UPDATES = "Updates";
-    public static final String LABEL_SOCIAL = "Social";
-    public static final String LABEL_FORUMS = "Forums";
-    public static final String LABEL_PROMOS = "Promos";
+    public static final String LABEL_UPDATES = LabelAggregator.LABEL_UPDATES;
+    public static final String LABEL_SOCIAL = LabelAggregator.LABEL_SOCIAL;
+    public static final String LABEL_FORUMS = LabelAggregator.LABEL_FORUMS;
+    public static final String LABEL_PROMOS = LabelAggregator.LABEL_PROMOS;
     public static final String LABEL_UNREAD = "Unread";
 
     public static final String HIDE_LABELS = "hide_labels";
 
+    public static final String PREF_TRACKED_LABELS = "pref_tracked_labels";
+
+    public static final String PREF_TRACE = "diagnostics_trace";
+
     private static final String ACCOUNT_TYPE_GOOGLE = "com.google";
 
-    private static final String SECTIONED_INBOX_CANONICAL_NAME_PREFIX = "^sq_ig_i_";
-    private static final String SECTIONED_INBOX_CANONICAL_NAME_PERSONAL = "^sq_ig_i_personal";
+    private static final long UPDATE_COALESCE_WINDOW_MS = 2 * 1000;
+    private static final long UPDATE_MIN_INTERVAL_MS = 15 * 1000;
+    /** Longest refresh interval of an account whose labels keep changing. */
+    static final long ACCOUNT_MAX_REFRESH_INTERVAL_MS = 5 * 60 * 1000;
+
+    private static final int MAX_QUERY_THREADS = 4;
+    private static final long QUERY_THREAD_KEEP_ALIVE_MS = 30 * 1000;
+    private static final long ACCOUNT_QUERY_DEADLINE_MS = 5 * 1000;
+
+    private static final String SNAPSHOT_FILE_NAME = "counts.snapshot";
+    /** Older snapshots aren't shown, the counts may be long gone. */
+    private static final long SNAPSHOT_MAX_AGE_MS = 60 * 60 * 1000;
+    /** Steady counts rewrite the snapshot this often, so it doesn't go stale. */
+    private static final long SNAPSHOT_REFRESH_MS = SNAPSHOT_MAX_AGE_MS / 2;
+
+    private static final long TREND_WINDOW_MS = 60 * 60 * 1000;
+
+    private final LabelAggregator mAggregator = new LabelAggregator();
+
+    /**
+     * Last counts each account answered with, used when its query misses the deadline.
+     */
+    private final ConcurrentHashMap<String, LabelAggregator.AccountCounts> mLastKnownCounts =
+            new ConcurrentHashMap<>();
+
+    private ExecutorService mQueryExecutor;
+
+    /**
+     * Accounts with a query queued or running, a query that missed its deadline stays in here
+     * until it returns.
+     */
+    private final Set<String> mQueriesInFlight =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Runs the label catalog refreshes, one at a time in the background, away from the queries
+     * the published counts wait for.
+     */
+    private ExecutorService mCatalogExecutor;
+
+    /** Accounts whose label catalog refresh is queued or running. */
+    private final Set<String> mCatalogRefreshesInFlight =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private LabelSource mLabelSource;
+
+    /**
+     * Holds back accounts whose query keeps failing, reset when the accounts or Gmail change
+     * and on manual updates.
+     */
+    private final AccountBreaker mBreaker = new AccountBreaker();
+
+    /** Last {@link PackageCache#getGmailChangeCount()} seen by an update. */
+    private int mGmailChanges;
+
+    private LabelsWatcher mLabelsWatcher;
+
+    /** URIs DashClock was last asked to watch. */
+    private Set<String> mWatchedUris;
+
+    /**
+     * Accounts whose labels changed since they were last queried. Only touched on the
+     * DashClock service thread.
+     */
+    private final Set<String> mDirtyAccounts = new HashSet<>();
+
+    private final RefreshPolicy mRefreshPolicy =
+            new RefreshPolicy(UPDATE_MIN_INTERVAL_MS, ACCOUNT_MAX_REFRESH_INTERVAL_MS);
+
+    private ScreenState mScreenState;
+
+    /**
+     * A periodic update came in with the screen off, the screen on update refreshes
+     * every account. Only touched on the DashClock service thread.
+     */
+    private boolean mFullRefreshDeferred;
+
+    private UpdateScheduler mScheduler;
+
+    private final PublishFilter mPublishFilter = new PublishFilter();
+
+    private final RefreshStats mStats = RefreshStats.get();
+
+    private final TraceBuffer mTrace = TraceBuffer.get();
+
+    private final BodyRenderer mBodyRenderer = new BodyRenderer(ExtensionData.MAX_EXPANDED_BODY_LENGTH);
+
+    private UnreadHistory mHistory;
+
+    /** Slot counts handed to {@link #mHistory}, reused across updates. */
+    private final int[] mHistorySlots = new int[LabelAggregator.SLOT_COUNT];
+
+    /**
+     * Written on the main thread by {@link #mPreferenceListener}, read by updates.
+     */
+    private volatile InboxConfig mConfig;
+
+    private AccountRegistry mAccountRegistry;
+
+    private PackageCache mPackageCache;
+
+    /** Uptime the bind started at, see {@link InboxDashClockApp#onExtensionCreated()}. */
+    private long mBindStart;
+    private boolean mPublishedOnce;
+
+    private AtomicFile mSnapshotFile;
+
+    /**
+     * Last published result, also kept in {@link #mSnapshotFile} to survive the process.
+     */
+    private CountsSnapshot mSnapshot;
+
+    /**
+     * Kept in a field, {@link SharedPreferences} only holds weak references to its listeners.
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+                    if (InboxConfig.isConfigKey(key)) {
+                        mConfig = InboxConfig.fromPreferences(sp);
+                    } else if (PREF_TRACE.equals(key)) {
+                        mTrace.setEnabled(sp.getBoolean(PREF_TRACE, false));
+                    }
+                }
+            };
 
     //private static final String[] FEATURES_MAIL = {"service_mail"};
 
@@ -57,246 +199,596 @@ public class InboxExtension extends DashClockExtension {
         return accountNames;
     }
 
-    private Set<String> getSelectedAccounts() {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mBindStart = InboxDashClockApp.onExtensionCreated();
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-        final String[] accounts = InboxExtension.getAllAccountNames(this);
-        Set<String> allAccountsSet = new HashSet<String>();
-        allAccountsSet.addAll(Arrays.asList(accounts));
-        return sp.getStringSet(PREF_ACCOUNTS, allAccountsSet);
+        mConfig = InboxConfig.fromPreferences(sp);
+        mTrace.setEnabled(sp.getBoolean(PREF_TRACE, false));
+        sp.registerOnSharedPreferenceChangeListener(mPreferenceListener);
+        mPackageCache = new PackageCache(this);
+        mPackageCache.register();
+        mAccountRegistry = new AccountRegistry(this, new AccountRegistry.Listener() {
+            @Override
+            public void onAccountsChanged() {
+                mBreaker.reset();
+                onUpdateData(UPDATE_REASON_SETTINGS_CHANGED);
+            }
+        });
+        mLabelSource = createLabelSource();
+    }
+
+    /**
+     * Overridden by tests.
+     */
+    LabelSource createLabelSource() {
+        return new ProviderLabelSource(getContentResolver(), mAccountRegistry);
     }
 
     @Override
     protected void onInitialize(boolean isReconnect) {
         super.onInitialize(isReconnect);
-        if (!isReconnect) {
-            Set<String> selectedAccounts = getSelectedAccounts();
-            String[] uris = new String[selectedAccounts.size()];
-
-            int i = 0;
-            for (String account : selectedAccounts) {
-                uris[i++] = InboxContract.Labels.getLabelsUri(account).toString();
-                // TODO: only watch the individual label's URI (GmailContract.Labels.URI)
+        // DashClock may have dropped our data, make sure the next update goes through
+        mPublishFilter.reset();
+        if (mScheduler == null) {
+            // onInitialize and onUpdateData are called on the same thread
+            Handler handler = new Handler();
+            mScheduler = new UpdateScheduler(handler, new UpdateScheduler.Callback() {
+                @Override
+                public void onScheduledUpdate(int reason) {
+                    update(reason);
+                }
+            }, UPDATE_COALESCE_WINDOW_MS, UPDATE_MIN_INTERVAL_MS);
+            mAccountRegistry.register(handler);
+            mLabelsWatcher = new LabelsWatcher(getContentResolver(), handler, new LabelsWatcher.Listener() {
+                @Override
+                public void onAccountChanged(String account) {
+                    mDirtyAccounts.add(account);
+                    // The policy only counts the first notification of a burst
+                    mRefreshPolicy.onChanged(account, SystemClock.uptimeMillis());
+                    onUpdateData(UPDATE_REASON_CONTENT_CHANGED);
+                }
+            });
+            mScreenState = new ScreenState(this, new ScreenState.Listener() {
+                @Override
+                public void onScreenStateChanged(boolean screenOn) {
+                    // DashClock sends its own screen on update, which replaces the one
+                    // scheduled here if it comes first.
+                    mScheduler.setDeferred(!screenOn);
+                }
+            });
+            mScreenState.register(handler);
+            mScheduler.setDeferred(!mScreenState.isScreenOn());
+            setUpdateWhenScreenOn(true);
+
+            // The first update narrows this down to the individual label URIs.
+            String[] accounts = mAccountRegistry.getSelectedAccounts(mConfig);
+            updateWatchedUris(accounts, new LabelAggregator.AccountCounts[accounts.length]);
+
+            mSnapshotFile = new AtomicFile(new File(getFilesDir(), SNAPSHOT_FILE_NAME));
+            mSnapshot = CountsSnapshot.read(mSnapshotFile);
+            if (mSnapshot != null && !mSnapshot.isFresh(System.currentTimeMillis(), SNAPSHOT_MAX_AGE_MS)) {
+                mSnapshot = null;
             }
-            addWatchContentUris(uris);
+            mHistory = UnreadHistory.get(this);
+            mHistory.open();
         }
-    }
-
-    @Override
-    protected void onUpdateData(int reason) {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-        Set<String> selectedAccounts = getSelectedAccounts();
 
-        Set<String> selectedLabels = sp.getStringSet(HIDE_LABELS, new HashSet<String>());
+        // Show the last result right away instead of waiting for the Gmail provider, then
+        // refresh it. An update requested by DashClock in the meantime replaces this one.
+        // On reconnect the snapshot is the last result of this process, however old.
+        if (mSnapshot != null) {
+            publishIfChanged(mSnapshot.unread, mSnapshot.body);
+        }
+        onUpdateData(UPDATE_REASON_CONTENT_CHANGED);
+    }
 
-        for(String s : selectedLabels) {
-            Log.d(TAG, "Label: " + s);
+    /**
+     * Watches the URI of each label the published counts depend on, instead of the whole
+     * labels table of every account. Accounts whose label URIs aren't known yet are watched
+     * as a whole.
+     * <p>
+     * DashClock watches the URIs too: its observers outlive our process and bring the extension
+     * back when mail arrives. Ours only exist while we're bound and tell which account changed.
+     */
+    private void updateWatchedUris(String[] accounts, LabelAggregator.AccountCounts[] results) {
+        Set<String> allUris = new HashSet<>();
+        for (int i = 0; i < accounts.length; i++) {
+            Set<String> uris = new HashSet<>();
+            if (results[i] == null || !results[i].collectLabelUris(uris)) {
+                uris.add(mAccountRegistry.getLabelsUri(accounts[i]).toString());
+            }
+            mLabelsWatcher.watch(accounts[i], uris);
+            allUris.addAll(uris);
         }
+        mLabelsWatcher.retain(accounts);
 
-        int unread = 0;
-        int unreadUpdate = 0;
-        String labelUpdate = "";
-        int unreadSocial = 0;
-        String labelSocial = "";
-        int unreadForums = 0;
-        String labelForums = "";
-        int unreadPersonal = 0;
-        String labelPersonal = "";
+        if (!allUris.equals(mWatchedUris)) {
+            watchContentUris(allUris.toArray(new String[allUris.size()]));
+            mWatchedUris = allUris;
+        }
+    }
 
-        int unreadPromos = 0;
-        String labelPromo = "";
+    /**
+     * Asks DashClock to watch exactly these URIs. Overridden by tests, which have no DashClock host.
+     */
+    void watchContentUris(String[] uris) {
+        removeAllWatchContentUris();
+        addWatchContentUris(uris);
+    }
 
-        int otherUnread = 0;
+    @Override
+    protected void onUpdateData(int reason) {
+        mStats.onUpdateRequested();
+        mTrace.instant(TraceBuffer.EVENT_UPDATE_REQUESTED, reason);
+        if (reason == UPDATE_REASON_PERIODIC && mScheduler.isDeferred()) {
+            // Nobody can see it, catch up when the screen turns on.
+            mFullRefreshDeferred = true;
+            return;
+        }
+        if (mScheduler.requestUpdate(reason)) {
+            update(reason);
+        }
+    }
 
-        List<Pair<String, Integer>> unreadPerAccount = new ArrayList<Pair<String, Integer>>();
+    private void update(int reason) {
+        mScheduler.onUpdated();
+        mStats.onUpdate();
+        final long updateStart = System.nanoTime();
+        InboxConfig config = mConfig;
+        int hiddenMask = config.hiddenMask;
+        // Sorted, so the merge order doesn't depend on which query finishes first.
+        String[] accounts = mAccountRegistry.getSelectedAccounts(config);
+        // Content changes only query the changed accounts that are due. Turning the screen on
+        // flushes every change held back while it was off.
+        boolean throttled = reason == UPDATE_REASON_CONTENT_CHANGED;
+        boolean changedOnly = throttled || (reason == UPDATE_REASON_SCREEN_ON && !mFullRefreshDeferred);
+        if (!changedOnly) {
+            mFullRefreshDeferred = false;
+        }
+        boolean canReadLabels = mPackageCache.canReadLabels();
+        if (mPackageCache.getGmailChangeCount() != mGmailChanges) {
+            // A new Gmail may fix what failed with the old one
+            mGmailChanges = mPackageCache.getGmailChangeCount();
+            mBreaker.reset();
+        } else if (reason == UPDATE_REASON_MANUAL) {
+            // Asked for explicitly, retry every account
+            mBreaker.reset();
+        }
+        mBreaker.retain(accounts);
+        LabelAggregator.AccountCounts[] results;
+        if (canReadLabels) {
+            results = queryAccounts(accounts, config, changedOnly, throttled);
+            if (!changedOnly) {
+                refreshLabelCatalog(accounts);
+            }
+            if (!mDirtyAccounts.isEmpty()) {
+                // Changed accounts that weren't due yet, or whose query didn't answer
+                mScheduler.requestUpdateAt(mRefreshPolicy.getNextDueTime(mDirtyAccounts));
+            }
+            long retryTime = mBreaker.getNextRetryTime(SystemClock.uptimeMillis());
+            if (retryTime != Long.MAX_VALUE) {
+                // Try the failed accounts again once their backoff ran out
+                mScheduler.requestUpdateAt(retryTime);
+            }
+        } else {
+            mTrace.instant(TraceBuffer.EVENT_NO_LABELS_ACCESS, 0);
+            results = new LabelAggregator.AccountCounts[accounts.length];
+        }
+        updateWatchedUris(accounts, results);
+        CountsProvider.publish(this, CountsProvider.Counts.from(results));
+
+        long stageStart = System.nanoTime();
+        LabelAggregator aggregator = mAggregator;
+        aggregator.begin(hiddenMask, config.trackedLabels);
+        for (LabelAggregator.AccountCounts counts : results) {
+            if (counts != null) {
+                aggregator.addAccount(counts);
+            }
+        }
 
-        for (String account : selectedAccounts) {
-            Cursor cursor = tryOpenLabelsCursor(account);
-            if (cursor == null || cursor.isAfterLast()) {
-                Log.i(TAG, "No Inbox information found for account.");
-                if (cursor != null) {
-                    cursor.close();
-                }
-                continue;
+        int unread = aggregator.getTotalUnread();
+        mStats.aggregateTime.record(RefreshStats.elapsedMicros(stageStart));
+        mTrace.complete(TraceBuffer.EVENT_AGGREGATE, stageStart, aggregator.getAccountCount());
+
+        long now = System.currentTimeMillis();
+        int newSinceTrendWindow = 0;
+        if (canReadLabels) {
+            // Zeros without label access would be noise in the history.
+            int[] slots = mHistorySlots;
+            for (int slot = 0; slot < LabelAggregator.SLOT_COUNT; slot++) {
+                slots[slot] = aggregator.getLabelUnread(slot);
+            }
+            int previous = mHistory.getTotalAt(now - TREND_WINDOW_MS);
+            mHistory.append(now, unread, slots);
+            if (previous >= 0) {
+                newSinceTrendWindow = unread - previous;
             }
+        }
 
-            int accountUnread = 0;
-
-            boolean hasLabels = false;
-
-            while (cursor.moveToNext()) {
-                String thisCanonicalName = cursor.getString(LabelsQuery.CANONICAL_NAME);
-                String name = cursor.getString(cursor.getColumnIndex(InboxContract.Labels.NAME));
-                int thisUnread = cursor.getInt(LabelsQuery.NUM_UNREAD_CONVERSATIONS);
-                switch (thisCanonicalName) {
-                    case InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_GROUP:
-                        unreadForums = thisUnread;
-                        labelForums = name;
-                        hasLabels = true;
-                        break;
-                    case InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_UPDATES:
-                        unreadUpdate = thisUnread;
-                        labelUpdate = name;
-                        hasLabels = true;
-                        break;
-                    case InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PERSONAL:
-                        unreadPersonal = thisUnread;
-                        labelPersonal = name;
-                        hasLabels = true;
-                        break;
-                    case InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_SOCIAL:
-                        unreadSocial = thisUnread;
-                        labelSocial = name;
-                        hasLabels = true;
-                        break;
-                    case InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PROMO:
-                        unreadPromos = thisUnread;
-                        labelPromo = name;
-                        hasLabels = true;
-                        break;
-                    case InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX:
-                    case InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PRIORITY_INBOX:
-                        if(otherUnread != 0) {
-                            otherUnread += thisUnread;
-                        }
-                        break;
+        stageStart = System.nanoTime();
+        BodyRenderer renderer = mBodyRenderer;
+        renderer.begin();
+        if(config.showAccounts) {
+            for (int i = 0; i < aggregator.getAccountCount(); i++) {
+                LabelAggregator.AccountCounts counts = aggregator.getAccount(i);
+                if (!renderer.addLine(counts.account, counts.getUnread())) {
+                    break;
                 }
-
-                if (!TextUtils.isEmpty(thisCanonicalName) && thisCanonicalName.startsWith(SECTIONED_INBOX_CANONICAL_NAME_PREFIX)) {
-                    accountUnread += thisUnread;
+            }
+        }
+        if(config.showAllLabels) {
+            // Hidden labels were already left out of the counts by the aggregator.
+            for (int slot = 0; slot < LabelAggregator.SLOT_COUNT; slot++) {
+                int labelUnread = aggregator.getLabelUnread(slot);
+                if (labelUnread > 0 && !renderer.addLine(aggregator.getLabelName(slot), labelUnread)) {
+                    break;
                 }
             }
-
-            if (accountUnread > 0) {
-                unreadPerAccount.add(new Pair<>(account, accountUnread));
-                unread += accountUnread;
+        }
+        for (int i = 0; i < aggregator.getTrackedCount(); i++) {
+            int labelUnread = aggregator.getTrackedUnread(i);
+            if (labelUnread > 0 && !renderer.addLine(aggregator.getTrackedName(i), labelUnread)) {
+                break;
             }
-
-            if(!hasLabels && otherUnread > 0) {
-                unread = otherUnread;
+        }
+        // The snapshot leaves out the trend, it's stale by the time a snapshot is shown.
+        String expandedBody = renderer.finish();
+        String snapshotBody = expandedBody;
+        if (newSinceTrendWindow > 0
+                && renderer.addLine(getString(R.string.body_new_last_hour), newSinceTrendWindow)) {
+            expandedBody = renderer.finish();
+        }
+        mStats.renderTime.record(RefreshStats.elapsedMicros(stageStart));
+        mTrace.complete(TraceBuffer.EVENT_RENDER, stageStart, 0);
+
+        stageStart = System.nanoTime();
+        if (!publishIfChanged(unread, expandedBody)) {
+            mStats.onPublishSkipped();
+            mStats.updateTime.record(RefreshStats.elapsedMicros(updateStart));
+            mTrace.instant(TraceBuffer.EVENT_PUBLISH_SKIPPED, mPublishFilter.getSkippedCount());
+            mTrace.complete(TraceBuffer.EVENT_UPDATE, updateStart, reason);
+            if (mSnapshot == null || !mSnapshot.isFresh(now, SNAPSHOT_REFRESH_MS)) {
+                // Same counts, confirmed just now
+                mSnapshot = new CountsSnapshot(unread, snapshotBody, now);
+                mSnapshot.write(mSnapshotFile);
             }
+            return;
+        }
+        mStats.onPublish();
+        mStats.publishTime.record(RefreshStats.elapsedMicros(stageStart));
+        mStats.updateTime.record(RefreshStats.elapsedMicros(updateStart));
+        mTrace.complete(TraceBuffer.EVENT_PUBLISH, stageStart, unread);
+        mTrace.complete(TraceBuffer.EVENT_UPDATE, updateStart, reason);
+
+        mSnapshot = new CountsSnapshot(unread, snapshotBody, now);
+        mSnapshot.write(mSnapshotFile);
+    }
 
-            cursor.close();
+    /**
+     * Publishes the counts unless they're the same as what was last published.
+     *
+     * @return false if nothing was published
+     */
+    private boolean publishIfChanged(int unread, String expandedBody) {
+        Intent clickIntent = mPackageCache.getInboxLaunchIntent();
+
+        boolean visible = unread > 0;
+        String status = Integer.toString(unread);
+        String title = getResources().getQuantityString(R.plurals.inbox_title_template, unread, unread);
+        if (!mPublishFilter.shouldPublish(visible, status, title, expandedBody, clickIntent != null)) {
+            return false;
         }
 
-        StringBuilder body = new StringBuilder();
-        if(sp.getBoolean(PREF_SHOW_ACCOUNT, true)) {
-            for (Pair<String, Integer> pair : unreadPerAccount) {
-                if (pair.second == 0) {
-                    continue;
-                }
-                if (body.length() > 0) {
-                    body.append("\n");
-                }
-                body.append(pair.first).append(" (").append(pair.second).append(")");
-                if(sp.getBoolean(PREF_ALL, true)) {
-                    body.append("\n");
-                }
-            }
+        publish(new ExtensionData()
+                .visible(visible)
+                .status(status)
+                .expandedTitle(title)
+                .icon(R.drawable.ic_inbox_logo)
+                .expandedBody(expandedBody)
+                .clickIntent(clickIntent));
+
+        if (!mPublishedOnce) {
+            mPublishedOnce = true;
+            // Shown with the other refresh stats, the trace has the publish itself
+            mStats.bindToFirstPublishTime.record((SystemClock.uptimeMillis() - mBindStart) * 1000);
         }
+        return true;
+    }
 
-        boolean hasUpdates = false;
-        boolean hasSocial = false;
-        boolean hasForums = false;
+    /**
+     * Hands the data to DashClock. Overridden by tests.
+     */
+    void publish(ExtensionData data) {
+        publishUpdate(data);
+    }
 
-        if(sp.getBoolean(PREF_ALL, true)) {
-            if(unreadPersonal > 0) {
-                body.append(labelPersonal).append(" (").append(unreadPersonal).append(")");
+    /**
+     * Queries the labels of the accounts. The queries run concurrently, and accounts that don't
+     * answer before {@link #ACCOUNT_QUERY_DEADLINE_MS} or whose query is still running since an
+     * earlier update fall back to the last counts they reported.
+     *
+     * @param changedOnly true to only query the accounts whose labels changed and reuse the
+     *                    last counts of the others
+     * @param throttled true to hold back changed accounts the {@link RefreshPolicy} says aren't
+     *                  due yet, they stay dirty
+     * @return the counts of each account, in the same order as accounts. Null entries are
+     * accounts without label information.
+     */
+    private LabelAggregator.AccountCounts[] queryAccounts(String[] accounts, final InboxConfig config,
+                                                          boolean changedOnly, boolean throttled) {
+        LabelAggregator.AccountCounts[] results = new LabelAggregator.AccountCounts[accounts.length];
+        int[] stale = new int[accounts.length];
+        int staleCount = 0;
+        if (!changedOnly) {
+            mDirtyAccounts.clear();
+        }
+        long now = SystemClock.uptimeMillis();
+        for (int i = 0; i < accounts.length; i++) {
+            String account = accounts[i];
+            LabelAggregator.AccountCounts cached = changedOnly ? mLastKnownCounts.get(account) : null;
+            boolean query;
+            if (cached == null || cached.hiddenMask != config.hiddenMask
+                    || (!cached.hasNames && config.showAllLabels)
+                    || !cached.tracked.equals(config.trackedLabels)) {
+                query = true;
+            } else if (mDirtyAccounts.contains(account)) {
+                query = !throttled || mRefreshPolicy.isDue(account, now);
+            } else {
+                // Retried once its backoff ran out
+                query = mBreaker.hasFailed(account);
             }
 
-            if(!selectedLabels.contains(LABEL_UPDATES)) {
-                if(unreadUpdate > 0) {
-                    if(unreadPersonal > 0) {
-                        body.append("\n");
-                    }
-                    hasUpdates = true;
-                    body.append(labelUpdate).append(" (").append(unreadUpdate).append(")");
-                }
+            if (query && !mBreaker.allowQuery(account, now)) {
+                // Failed recently. Counts from before a transient failure are kept, the retry
+                // queries it again.
+                mTrace.instant(TraceBuffer.EVENT_QUERY_SKIPPED, i);
+                results[i] = mLastKnownCounts.get(account);
+                mDirtyAccounts.remove(account);
+            } else if (query && mQueriesInFlight.contains(account)) {
+                // Still stuck in an earlier query, don't pile another one on top of it
+                results[i] = mLastKnownCounts.get(account);
+                mDirtyAccounts.add(account);
+            } else if (query) {
+                stale[staleCount++] = i;
+                mDirtyAccounts.remove(account);
+                mRefreshPolicy.onQueried(account, now);
             } else {
-                Log.d(TAG, "Updates should be hidden");
-                unread -= unreadUpdate;
+                results[i] = cached;
             }
+        }
 
-            if(!selectedLabels.contains(LABEL_SOCIAL)) {
-                if(unreadSocial > 0) {
-                    if(unreadPersonal > 0|| hasUpdates) {
-                        body.append("\n");
-                    }
-                    hasSocial = true;
-                    body.append(labelSocial).append(" (").append(unreadSocial).append(")");
-                }
-            } else {
-                Log.d(TAG, "Social should be hidden");
-                unread -= unreadSocial;
+        if (staleCount == 0) {
+            return results;
+        }
+        // Label URIs rarely change, content updates reuse the ones of the previous counts.
+        boolean needUris = !changedOnly;
+        String[] staleAccounts = new String[staleCount];
+        for (int j = 0; j < staleCount; j++) {
+            staleAccounts[j] = accounts[stale[j]];
+            LabelAggregator.AccountCounts previous = mLastKnownCounts.get(staleAccounts[j]);
+            if (previous == null || previous.hiddenMask != config.hiddenMask
+                    || !previous.tracked.equals(config.trackedLabels)) {
+                needUris = true;
             }
+        }
+        boolean needNames = config.showAllLabels || config.trackedLabels.size() > 0;
+        final LabelSource.Batch batch = mLabelSource.fetch(staleAccounts, needNames, needUris);
+        try {
+            queryAccounts(batch, staleAccounts, stale, results, config);
+        } finally {
+            batch.close();
+        }
+        return results;
+    }
 
-            if(!selectedLabels.contains(LABEL_FORUMS)) {
-                if(unreadForums > 0) {
-                    if(unreadPersonal > 0|| hasUpdates || hasSocial) {
-                        body.append("\n");
+    /**
+     * Queries the accounts of the batch into results.
+     *
+     * @param stale the index in results of each account of the batch
+     */
+    private void queryAccounts(final LabelSource.Batch batch, String[] batchAccounts, int[] stale,
+                               LabelAggregator.AccountCounts[] results, final InboxConfig config) {
+        final int staleCount = batchAccounts.length;
+        ExecutorService executor = getQueryExecutor();
+        // Queries of earlier updates that never answered hold every thread, anything queued
+        // behind them would only time out as well.
+        boolean wedged = mQueriesInFlight.size() >= MAX_QUERY_THREADS;
+        List<Future<LabelAggregator.AccountCounts>> futures = new ArrayList<>(staleCount);
+        for (int j = 0; j < staleCount; j++) {
+            if (wedged) {
+                futures.add(null);
+                continue;
+            }
+            final int index = j;
+            final String account = batchAccounts[j];
+            mQueriesInFlight.add(account);
+            futures.add(executor.submit(new Callable<LabelAggregator.AccountCounts>() {
+                @Override
+                public LabelAggregator.AccountCounts call() {
+                    try {
+                        return queryAccount(batch, index, account, config);
+                    } finally {
+                        mQueriesInFlight.remove(account);
                     }
-                    hasForums = true;
-                    body.append(labelForums).append(" (").append(unreadForums).append(")");
                 }
-            } else {
-                Log.d(TAG, "Forums should be hidden");
-                unread -= unreadForums;
+            }));
+        }
+
+        // Even a single account gets a deadline, a wedged provider mustn't block the DashClock thread.
+        long deadline = SystemClock.uptimeMillis() + ACCOUNT_QUERY_DEADLINE_MS;
+        for (int j = 0; j < staleCount; j++) {
+            final int i = stale[j];
+            Future<LabelAggregator.AccountCounts> future = futures.get(j);
+            if (future == null) {
+                results[i] = mLastKnownCounts.get(batchAccounts[j]);
+                mDirtyAccounts.add(batchAccounts[j]);
+                continue;
             }
+            try {
+                long timeout = Math.max(0, deadline - SystemClock.uptimeMillis());
+                results[i] = future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Leave the query running, it refreshes the last known counts once it answers.
+                Log.w(TAG, "Inbox labels query timed out, using last known counts.");
+                mTrace.instant(TraceBuffer.EVENT_QUERY_TIMEOUT, i);
+                results[i] = mLastKnownCounts.get(batchAccounts[j]);
+                mDirtyAccounts.add(batchAccounts[j]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results[i] = mLastKnownCounts.get(batchAccounts[j]);
+                mDirtyAccounts.add(batchAccounts[j]);
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Error querying Inbox labels", e.getCause());
+                results[i] = mLastKnownCounts.get(batchAccounts[j]);
+            }
+        }
+    }
 
-            if(!selectedLabels.contains(LABEL_PROMOS)) {
-                if(unreadPromos > 0) {
-                    if(unreadPersonal > 0|| hasUpdates || hasSocial || hasForums) {
-                        body.append("\n");
+    /**
+     * Refreshes the label catalog of the accounts that need it, in the background.
+     */
+    private void refreshLabelCatalog(String[] accounts) {
+        final LabelCatalog catalog = LabelCatalog.get(this);
+        long now = SystemClock.uptimeMillis();
+        for (final String account : accounts) {
+            if (!mBreaker.allowQuery(account, now) || mCatalogRefreshesInFlight.contains(account)
+                    || !catalog.needsRefresh(account)) {
+                continue;
+            }
+            final Uri labelsUri = mAccountRegistry.getLabelsUri(account);
+            mCatalogRefreshesInFlight.add(account);
+            getCatalogExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        catalog.refresh(getContentResolver(), account, labelsUri);
+                    } finally {
+                        mCatalogRefreshesInFlight.remove(account);
                     }
-                    body.append(labelPromo).append(" (").append(unreadPromos).append(")");
                 }
-            } else {
-                Log.d(TAG, "Promos should be hidden");
-                unread -= unreadPromos;
-            }
+            });
         }
-
-        Intent clickIntent = getPackageManager().getLaunchIntentForPackage("com.google.android.apps.inbox");
-
-        publishUpdate(new ExtensionData()
-                .visible(unread > 0)
-                .status(Integer.toString(unread))
-                .expandedTitle(getResources().getQuantityString(R.plurals.inbox_title_template, unread, unread))
-                .icon(R.drawable.ic_inbox_logo)
-                .expandedBody(body.toString())
-                .clickIntent(clickIntent));
     }
 
-
-
-
-    private Cursor tryOpenLabelsCursor(String account) {
+    /**
+     * @param index the account's index in the batch
+     */
+    private LabelAggregator.AccountCounts queryAccount(LabelSource.Batch batch, int index, String account,
+                                                       InboxConfig config) {
+        final long start = System.nanoTime();
+        LabelSource.Rows labels;
         try {
-            return getContentResolver().query(
-                    InboxContract.Labels.getLabelsUri(account),
-                    LabelsQuery.PROJECTION,
-                    null, // NOTE: the Labels API doesn't allow selections here
-                    null,
-                    null);
-
-        } catch (Exception e) {
-            // From developer console: "Permission Denial: opening provider com.google.android.gsf..
-            // From developer console: "SQLiteException: no such table: labels"
-            // From developer console: "NullPointerException"
-            Log.e(TAG, "Error opening Inbox labels", e);
+            labels = batch.open(index);
+        } catch (LabelSource.FetchException e) {
+            long backoff = mBreaker.onFailure(account, e.permanent, SystemClock.uptimeMillis());
+            Log.w(TAG, "Not querying an account for " + backoff / 1000 + " s: " + e.getMessage());
+            mStats.queryTime.record(RefreshStats.elapsedMicros(start));
+            mTrace.instant(TraceBuffer.EVENT_QUERY_FAILED, e.permanent ? 1 : 0);
+            if (e.permanent) {
+                // Its counts are gone until a query succeeds again
+                mLastKnownCounts.remove(account);
+                return null;
+            }
+            // Likely a hiccup, e.g. Gmail starting, keep showing what it last reported
+            return mLastKnownCounts.get(account);
+        }
+        mBreaker.onSuccess(account);
+        LabelAggregator.AccountCounts counts = null;
+        int rows = 0;
+        if (labels != null) {
+            counts = new LabelAggregator.AccountCounts();
+            counts.reset(account, config.hiddenMask, config.trackedLabels);
+            try {
+                rows = LabelsReader.read(labels, counts, mLastKnownCounts.get(account),
+                        config.showAllLabels);
+            } finally {
+                labels.close();
+            }
+        }
+        if (rows == 0) {
+            // Nothing to reuse either, or the next content update would bring the old counts back
+            mLastKnownCounts.remove(account);
+            mStats.queryTime.record(RefreshStats.elapsedMicros(start));
+            mTrace.instant(TraceBuffer.EVENT_NO_LABELS, 0);
             return null;
         }
+        mLastKnownCounts.put(account, counts);
+        mStats.queryTime.record(RefreshStats.elapsedMicros(start));
+        mStats.rowsScanned.record(rows);
+        mTrace.complete(TraceBuffer.EVENT_QUERY, start, rows);
+        return counts;
+    }
+
+    private synchronized ExecutorService getQueryExecutor() {
+        if (mQueryExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_QUERY_THREADS, MAX_QUERY_THREADS,
+                    QUERY_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                    // Unbounded, an account is never queued twice, see mQueriesInFlight
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, TAG + " query #" + mCount.incrementAndGet());
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            mQueryExecutor = executor;
+        }
+        return mQueryExecutor;
+    }
+
+    private synchronized ExecutorService getCatalogExecutor() {
+        if (mCatalogExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                    QUERY_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, TAG + " catalog");
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            mCatalogExecutor = executor;
+        }
+        return mCatalogExecutor;
     }
 
-    private interface LabelsQuery {
-        String[] PROJECTION = {
-                InboxContract.Labels.NUM_UNREAD_CONVERSATIONS,
-                InboxContract.Labels.URI,
-                InboxContract.Labels.CANONICAL_NAME,
-                InboxContract.Labels.NAME,
-        };
-
-        int NUM_UNREAD_CONVERSATIONS = 0;
-        int URI = 1;
-        int CANONICAL_NAME = 2;
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .unregisterOnSharedPreferenceChangeListener(mPreferenceListener);
+        mAccountRegistry.unregister();
+        mPackageCache.unregister();
+        if (mScheduler != null) {
+            mScheduler.cancel();
+        }
+        if (mLabelsWatcher != null) {
+            mLabelsWatcher.unwatchAll();
+        }
+        if (mScreenState != null) {
+            mScreenState.unregister();
+        }
+        synchronized (this) {
+            if (mQueryExecutor != null) {
+                mQueryExecutor.shutdownNow();
+                mQueryExecutor = null;
+            }
+            if (mCatalogExecutor != null) {
+                mCatalogExecutor.shutdownNow();
+                mCatalogExecutor = null;
+            }
+        }
     }
 }
@@ -17,8 +17,11 @@
 package gabilheri.com.inboxdashclock;
 
 
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.MultiSelectListPreference;
 import android.preference.Preference;
@@ -27,7 +30,9 @@ import android.preference.PreferenceManager;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
 import android.view.MenuItem;
+import android.util.Log;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 import android.widget.RadioButton;
 import android.widget.Toast;
@@ -37,6 +42,11 @@ import com.afollestad.materialdialogs.MaterialDialog;
 import com.anjlab.android.iab.v3.BillingProcessor;
 import com.anjlab.android.iab.v3.TransactionDetails;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -44,6 +54,7 @@ import java.util.List;
 import java.util.Set;
 
 public class InboxSettingsActivity extends AppCompatActivity implements View.OnClickListener{
+    private static final String TAG = InboxSettingsActivity.class.getSimpleName();
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
@@ -56,6 +67,7 @@ public class InboxSettingsActivity extends AppCompatActivity implements View.OnC
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        final long createStart = System.nanoTime();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.settings_activity);
         // Display the fragment as the main content.
@@ -79,6 +91,17 @@ public class InboxSettingsActivity extends AppCompatActivity implements View.OnC
         devIn.setOnClickListener(this);
         devWeb.setOnClickListener(this);
 
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                long micros = RefreshStats.elapsedMicros(createStart);
+                RefreshStats.get().settingsFirstFrameTime.record(micros);
+                Log.i(TAG, "Settings first frame after " + micros / 1000 + " ms");
+                return true;
+            }
+        });
     }
 
     @Override
@@ -109,7 +132,19 @@ public class InboxSettingsActivity extends AppCompatActivity implements View.OnC
 
     public static class SettingsFragment extends PreferenceFragment implements BillingProcessor.IBillingHandler{
 
+        private static final String PREF_DIAGNOSTICS_REFRESH = "diagnostics_refresh";
+        private static final String PREF_DIAGNOSTICS_TRACE_EXPORT = "diagnostics_trace_export";
+        private static final String PREF_DIAGNOSTICS_RECORDING_EXPORT = "diagnostics_recording_export";
+        private static final String PREF_UNREAD_TREND = "unread_trend";
+
+        private static final String RECORDING_FILE_NAME = "labels.recording";
+
+        private static final int TREND_BUCKETS = 24;
+        private static final long TREND_BUCKET_MS = 60 * 60 * 1000;
+
+        /** Only alive while the donate dialog or a purchase is in progress. */
         BillingProcessor billingProcessor;
+        boolean purchasing;
         String billingID = null;
         MaterialDialog donateDialog;
         List<String> products;
@@ -117,9 +152,9 @@ public class InboxSettingsActivity extends AppCompatActivity implements View.OnC
         @Override
         public void onCreate(Bundle paramBundle) {
             super.onCreate(paramBundle);
-            billingProcessor = new BillingProcessor(getActivity(), getString(R.string.billing_key), this);
             addPreferencesFromResource(R.xml.pref_inbox);
-            addAccountsPreference();
+            loadAccountsPreference();
+            loadTrackedLabelsPreference();
 
             findPreference("donate").setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
                 @Override
@@ -129,10 +164,180 @@ public class InboxSettingsActivity extends AppCompatActivity implements View.OnC
                 }
             });
 
+            findPreference(PREF_DIAGNOSTICS_REFRESH).setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    showRefreshStatsDialog();
+                    return true;
+                }
+            });
+
+            findPreference(PREF_DIAGNOSTICS_TRACE_EXPORT).setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    exportTrace();
+                    return true;
+                }
+            });
+
+            findPreference(PREF_DIAGNOSTICS_RECORDING_EXPORT).setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    exportLabelRecording();
+                    return true;
+                }
+            });
+
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            String summary = RefreshStats.get().summary();
+            findPreference(PREF_DIAGNOSTICS_REFRESH).setSummary(summary != null
+                    ? summary : getString(R.string.diagnostics_refresh_empty));
+            loadUnreadTrend();
+        }
+
+        /**
+         * Renders the unread history as a sparkline, off the main thread since the first use
+         * maps the history file.
+         */
+        private void loadUnreadTrend() {
+            final Context context = getActivity().getApplicationContext();
+            new AsyncTask<Void, Void, String>() {
+                @Override
+                protected String doInBackground(Void... params) {
+                    return UnreadHistory.get(context).sparkline(System.currentTimeMillis(),
+                            TREND_BUCKETS, TREND_BUCKET_MS);
+                }
+
+                @Override
+                protected void onPostExecute(String sparkline) {
+                    if (isAdded()) {
+                        findPreference(PREF_UNREAD_TREND).setSummary(sparkline != null
+                                ? sparkline : getString(R.string.pref_unread_trend_empty));
+                    }
+                }
+            }.execute();
+        }
+
+        private void showRefreshStatsDialog() {
+            final String stats = RefreshStats.get().format();
+            final MaterialDialog dialog = new MaterialDialog.Builder(getActivity())
+                    .title(R.string.diagnostics_refresh_title)
+                    .content(stats)
+                    .negativeText("Dismiss")
+                    .negativeColor(getResources().getColor(R.color.accent_color))
+                    .positiveText(R.string.diagnostics_export)
+                    .positiveColor(getResources().getColor(R.color.primary_dark))
+                    .build();
+
+            dialog.getActionButton(DialogAction.POSITIVE).setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    Intent share = new Intent(Intent.ACTION_SEND)
+                            .setType("text/plain")
+                            .putExtra(Intent.EXTRA_SUBJECT, getString(R.string.diagnostics_export_subject))
+                            .putExtra(Intent.EXTRA_TEXT, stats);
+                    startActivity(Intent.createChooser(share, getString(R.string.diagnostics_export)));
+                    dialog.dismiss();
+                }
+            });
+            dialog.show();
         }
 
-        private void addAccountsPreference() {
-            final String[] accounts = InboxExtension.getAllAccountNames(getActivity());
+        /**
+         * Loads the accounts off the main thread, the preference is added once they're known.
+         */
+        private void loadAccountsPreference() {
+            final Context context = getActivity().getApplicationContext();
+            new AsyncTask<Void, Void, String[]>() {
+                @Override
+                protected String[] doInBackground(Void... params) {
+                    return InboxExtension.getAllAccountNames(context);
+                }
+
+                @Override
+                protected void onPostExecute(String[] accounts) {
+                    if (isAdded()) {
+                        addAccountsPreference(accounts);
+                    }
+                }
+            }.execute();
+        }
+
+        private void exportTrace() {
+            TraceBuffer trace = TraceBuffer.get();
+            if (trace.size() == 0) {
+                Toast.makeText(getActivity(), R.string.diagnostics_trace_empty, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            Intent share = new Intent(Intent.ACTION_SEND)
+                    .setType("text/plain")
+                    .putExtra(Intent.EXTRA_SUBJECT, getString(R.string.diagnostics_trace_subject))
+                    .putExtra(Intent.EXTRA_TEXT, trace.toChromeJson());
+            startActivity(Intent.createChooser(share, getString(R.string.diagnostics_trace_export_title)));
+        }
+
+        /**
+         * Records the labels of every account off the main thread, see {@link RecordedLabelSource}.
+         */
+        private void exportLabelRecording() {
+            final Context context = getActivity().getApplicationContext();
+            new AsyncTask<Void, Void, File>() {
+                @Override
+                protected File doInBackground(Void... params) {
+                    // Shared as a file, the receiving app must be able to read it
+                    File dir = context.getExternalCacheDir();
+                    if (dir == null) {
+                        return null;
+                    }
+                    AccountRegistry registry = new AccountRegistry(context, new AccountRegistry.Listener() {
+                        @Override
+                        public void onAccountsChanged() {
+                        }
+                    });
+                    File file = new File(dir, RECORDING_FILE_NAME);
+                    OutputStream out = null;
+                    try {
+                        out = new BufferedOutputStream(new FileOutputStream(file));
+                        RecordedLabelSource.record(new ProviderLabelSource(context.getContentResolver(), registry),
+                                registry.getAllAccounts(), out);
+                        return file;
+                    } catch (IOException e) {
+                        Log.e(TAG, "Couldn't record the labels", e);
+                        return null;
+                    } finally {
+                        if (out != null) {
+                            try {
+                                out.close();
+                            } catch (IOException e) {
+                                // Already reported if it matters
+                            }
+                        }
+                    }
+                }
+
+                @Override
+                protected void onPostExecute(File file) {
+                    if (!isAdded()) {
+                        return;
+                    }
+                    if (file == null) {
+                        Toast.makeText(getActivity(), R.string.diagnostics_recording_failed, Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    Intent share = new Intent(Intent.ACTION_SEND)
+                            .setType("application/octet-stream")
+                            .putExtra(Intent.EXTRA_SUBJECT, getString(R.string.diagnostics_recording_subject))
+                            .putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+                    startActivity(Intent.createChooser(share, getString(R.string.diagnostics_recording_export_title)));
+                }
+            }.execute();
+        }
+
+        private void addAccountsPreference(final String[] accounts) {
             Set<String> allAccountsSet = new HashSet<String>();
             allAccountsSet.addAll(Arrays.asList(accounts));
 
@@ -172,8 +377,72 @@ public class InboxSettingsActivity extends AppCompatActivity implements View.OnC
                             .getStringSet(accountsPreference.getKey(), allAccountsSet));
         }
 
+        /**
+         * Fills the tracked labels preference from the label catalog. Accounts whose labels
+         * were never fetched are queried first, all of it off the main thread.
+         */
+        private void loadTrackedLabelsPreference() {
+            final MultiSelectListPreference trackedPreference =
+                    (MultiSelectListPreference) findPreference(InboxExtension.PREF_TRACKED_LABELS);
+            trackedPreference.setEnabled(false);
+            trackedPreference.setSummary(R.string.pref_tracked_labels_loading);
+
+            final Context context = getActivity().getApplicationContext();
+            new AsyncTask<Void, Void, List<LabelCatalog.Label>>() {
+                @Override
+                protected List<LabelCatalog.Label> doInBackground(Void... params) {
+                    String[] accounts = InboxExtension.getAllAccountNames(context);
+                    LabelCatalog catalog = LabelCatalog.get(context);
+                    if (InboxContract.canReadLabels(context)) {
+                        for (String account : accounts) {
+                            if (catalog.needsRefresh(account)) {
+                                catalog.refresh(context.getContentResolver(), account,
+                                        InboxContract.Labels.getLabelsUri(account));
+                            }
+                        }
+                    }
+                    return catalog.getTrackableLabels(accounts);
+                }
+
+                @Override
+                protected void onPostExecute(List<LabelCatalog.Label> labels) {
+                    if (!isAdded()) {
+                        return;
+                    }
+                    String[] entries = new String[labels.size()];
+                    String[] values = new String[labels.size()];
+                    for (int i = 0; i < entries.length; i++) {
+                        LabelCatalog.Label label = labels.get(i);
+                        entries[i] = label.name != null ? label.name : label.canonicalName;
+                        values[i] = label.canonicalName;
+                    }
+                    trackedPreference.setEntries(entries);
+                    trackedPreference.setEntryValues(values);
+                    trackedPreference.setEnabled(entries.length > 0);
+                    trackedPreference.setSummary(entries.length > 0
+                            ? R.string.pref_tracked_labels_summary : R.string.pref_tracked_labels_empty);
+                }
+            }.execute();
+        }
+
+        private BillingProcessor getBillingProcessor() {
+            if (billingProcessor == null) {
+                billingProcessor = new BillingProcessor(getActivity(), getString(R.string.billing_key), this);
+            }
+            return billingProcessor;
+        }
+
+        private void releaseBillingProcessor() {
+            purchasing = false;
+            if (billingProcessor != null) {
+                billingProcessor.release();
+                billingProcessor = null;
+            }
+        }
+
         @Override
         public void onProductPurchased(String purchaseId, TransactionDetails transactionDetails) {
+            releaseBillingProcessor();
             if(donateDialog != null) {
                 if(donateDialog.isShowing()) {
                     donateDialog.dismiss();
@@ -199,6 +468,7 @@ public class InboxSettingsActivity extends AppCompatActivity implements View.OnC
 
         @Override
         public void onBillingError(int i, Throwable throwable) {
+            releaseBillingProcessor();
             if(donateDialog != null) {
                 if(donateDialog.isShowing()) {
                     donateDialog.dismiss();
@@ -220,7 +490,7 @@ public class InboxSettingsActivity extends AppCompatActivity implements View.OnC
 
         @Override
         public void onActivityResult(int requestCode, int resultCode, Intent data) {
-            if (!billingProcessor.handleActivityResult(requestCode, resultCode, data)) {
+            if (billingProcessor == null || !billingProcessor.handleActivityResult(requestCode, resultCode, data)) {
                 super.onActivityResult(requestCode, resultCode, data);
             }
         }
@@ -253,7 +523,7 @@ public class InboxSettingsActivity extends AppCompatActivity implements View.OnC
                 buttons.add(pizza);
                 buttons.add(dinner);
                 buttons.add(college);
-                products =  billingProcessor.listOwnedProducts();
+                products =  getBillingProcessor().listOwnedProducts();
                 for(RadioButton rb : buttons) {
                     rb.setOnClickListener(new View.OnClickListener() {
                         @Override
@@ -273,11 +543,21 @@ public class InboxSettingsActivity extends AppCompatActivity implements View.OnC
                     public void onClick(View v) {
                         if (billingID != null) {
 //                            Log.d(LOG_TAG, "Purchasing... " + billingID);
-                                billingProcessor.purchase(getActivity(), billingID);
+                                purchasing = true;
+                                getBillingProcessor().purchase(getActivity(), billingID);
                         }
                     }
                 });
             }
+            donateDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+                @Override
+                public void onDismiss(DialogInterface dialog) {
+                    // A purchase outlives the dialog, it's released once the result is in.
+                    if (!purchasing) {
+                        releaseBillingProcessor();
+                    }
+                }
+            });
             donateDialog.show();
         }
 
@@ -303,9 +583,7 @@ public class InboxSettingsActivity extends AppCompatActivity implements View.OnC
         @Override
         public void onDestroy() {
             super.onDestroy();
-            if(billingProcessor != null) {
-                billingProcessor.release();
-            }
+            releaseBillingProcessor();
         }
     }
 
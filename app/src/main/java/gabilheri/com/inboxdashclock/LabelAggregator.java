@@ -0,0 +1,480 @@
+package gabilheri.com.inboxdashclock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Table-driven aggregation of Gmail label rows into per-account and global unread totals.
+ * <p>
+ * Every sectioned inbox canonical name is mapped to a fixed slot once, so accumulating a row
+ * is a single lookup plus an array increment. Hidden labels are filtered while accumulating.
+ * User labels picked in the settings are counted separately, see {@link TrackedLabels}.
+ * Instances are meant to be reused across refreshes and are not thread safe.
+ */
+final class LabelAggregator {
+
+    static final int SLOT_PERSONAL = 0;
+    static final int SLOT_UPDATES = 1;
+    static final int SLOT_SOCIAL = 2;
+    static final int SLOT_FORUMS = 3;
+    static final int SLOT_PROMOS = 4;
+    static final int SLOT_COUNT = 5;
+
+    /** Returned by {@link #slotFor(String)} for the Inbox / Priority Inbox labels. */
+    static final int SLOT_INBOX = -1;
+
+    /** Returned by {@link #slotFor(String)} for a sectioned label we don't display. */
+    static final int SLOT_OTHER_SECTION = -2;
+
+    /** Returned by {@link #slotFor(String)} for every other label. */
+    static final int SLOT_NONE = -3;
+
+    static final String SECTIONED_INBOX_CANONICAL_NAME_PREFIX = "^sq_ig_i_";
+
+    /** Canonical name of each slot, indexed by slot. */
+    static final String[] SLOT_CANONICAL_NAMES = {
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PERSONAL,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_UPDATES,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_SOCIAL,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_GROUP,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PROMO,
+    };
+
+    /**
+     * Values of the {@link InboxExtension#HIDE_LABELS} preference. Kept here rather than in
+     * InboxExtension so the benchmarks compile this class without Android.
+     */
+    static final String LABEL_UPDATES = "Updates";
+    static final String LABEL_SOCIAL = "Social";
+    static final String LABEL_FORUMS = "Forums";
+    static final String LABEL_PROMOS = "Promos";
+
+    /** Value stored in {@link InboxExtension#HIDE_LABELS} for each slot, null if it can't be hidden. */
+    static final String[] SLOT_HIDE_NAMES = {
+            null,
+            LABEL_UPDATES,
+            LABEL_SOCIAL,
+            LABEL_FORUMS,
+            LABEL_PROMOS,
+    };
+
+    private static final HashMap<String, Integer> SLOTS = new HashMap<>();
+
+    static {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            SLOTS.put(SLOT_CANONICAL_NAMES[i], i);
+        }
+        SLOTS.put(InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX, SLOT_INBOX);
+        SLOTS.put(InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PRIORITY_INBOX, SLOT_INBOX);
+    }
+
+    /**
+     * Maps a label canonical name to its slot.
+     *
+     * @return a slot index, or one of {@link #SLOT_INBOX}, {@link #SLOT_OTHER_SECTION}, {@link #SLOT_NONE}
+     */
+    static int slotFor(String canonicalName) {
+        if (canonicalName == null) {
+            return SLOT_NONE;
+        }
+        Integer slot = SLOTS.get(canonicalName);
+        if (slot != null) {
+            return slot;
+        }
+        return canonicalName.startsWith(SECTIONED_INBOX_CANONICAL_NAME_PREFIX) ? SLOT_OTHER_SECTION : SLOT_NONE;
+    }
+
+    private static final char[][] SLOT_CANONICAL_NAME_CHARS = new char[SLOT_COUNT][];
+    private static final char[][] INBOX_CANONICAL_NAME_CHARS = {
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX.toCharArray(),
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PRIORITY_INBOX.toCharArray(),
+    };
+    private static final char[] SECTIONED_INBOX_CANONICAL_NAME_PREFIX_CHARS =
+            SECTIONED_INBOX_CANONICAL_NAME_PREFIX.toCharArray();
+
+    static {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            SLOT_CANONICAL_NAME_CHARS[i] = SLOT_CANONICAL_NAMES[i].toCharArray();
+        }
+    }
+
+    /**
+     * Same as {@link #slotFor(String)} for a canonical name held in a char buffer, e.g. the
+     * data of a {@link android.database.CharArrayBuffer}. Doesn't allocate.
+     *
+     * @param length number of valid chars in name
+     */
+    static int slotFor(char[] name, int length) {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            if (regionEquals(SLOT_CANONICAL_NAME_CHARS[i], name, length, true)) {
+                return i;
+            }
+        }
+        for (char[] inbox : INBOX_CANONICAL_NAME_CHARS) {
+            if (regionEquals(inbox, name, length, true)) {
+                return SLOT_INBOX;
+            }
+        }
+        return regionEquals(SECTIONED_INBOX_CANONICAL_NAME_PREFIX_CHARS, name, length, false)
+                ? SLOT_OTHER_SECTION : SLOT_NONE;
+    }
+
+    /**
+     * @param exact true to require name to be exactly expected, false to only require it to start with it
+     */
+    private static boolean regionEquals(char[] expected, char[] name, int length, boolean exact) {
+        if (exact ? length != expected.length : length < expected.length) {
+            return false;
+        }
+        for (int i = expected.length - 1; i >= 0; i--) {
+            if (expected[i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compiles the values of the {@link InboxExtension#HIDE_LABELS} preference into a slot bitmask.
+     */
+    static int hiddenMask(Set<String> hiddenLabels) {
+        int mask = 0;
+        if (hiddenLabels == null) {
+            return mask;
+        }
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            if (SLOT_HIDE_NAMES[i] != null && hiddenLabels.contains(SLOT_HIDE_NAMES[i])) {
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Unread counts of a single account.
+     */
+    static final class AccountCounts {
+        final int[] unread = new int[SLOT_COUNT];
+        final String[] labelNames = new String[SLOT_COUNT];
+        final String[] labelUris = new String[SLOT_COUNT];
+        /** URIs of the sectioned labels without a slot. */
+        final ArrayList<String> otherSectionUris = new ArrayList<>();
+        /** URI of the Inbox label, only watched when the account has no sections. */
+        String inboxUri;
+        String account;
+        int otherSectionsUnread;
+        int inboxUnread;
+        boolean hasSections;
+        int hiddenMask;
+        /** True if the display names of the visible slots were read. */
+        boolean hasNames;
+        TrackedLabels tracked = TrackedLabels.EMPTY;
+        /** Unread count, display name and URI of each tracked label, indexed like {@link #tracked}. */
+        int[] trackedUnread = new int[0];
+        String[] trackedNames = new String[0];
+        String[] trackedUris = new String[0];
+
+        void reset(String account, int hiddenMask) {
+            reset(account, hiddenMask, TrackedLabels.EMPTY);
+        }
+
+        void reset(String account, int hiddenMask, TrackedLabels tracked) {
+            this.account = account;
+            this.hiddenMask = hiddenMask;
+            setTracked(tracked);
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                unread[i] = 0;
+                labelNames[i] = null;
+                labelUris[i] = null;
+            }
+            otherSectionUris.clear();
+            inboxUri = null;
+            otherSectionsUnread = 0;
+            inboxUnread = 0;
+            hasSections = false;
+            hasNames = false;
+        }
+
+        private void setTracked(TrackedLabels tracked) {
+            this.tracked = tracked;
+            int size = tracked.size();
+            if (trackedUnread.length != size) {
+                trackedUnread = new int[size];
+                trackedNames = new String[size];
+                trackedUris = new String[size];
+            } else {
+                for (int i = 0; i < size; i++) {
+                    trackedUnread[i] = 0;
+                    trackedNames[i] = null;
+                    trackedUris[i] = null;
+                }
+            }
+        }
+
+        void copyFrom(AccountCounts other) {
+            account = other.account;
+            hiddenMask = other.hiddenMask;
+            System.arraycopy(other.unread, 0, unread, 0, SLOT_COUNT);
+            System.arraycopy(other.labelNames, 0, labelNames, 0, SLOT_COUNT);
+            System.arraycopy(other.labelUris, 0, labelUris, 0, SLOT_COUNT);
+            otherSectionUris.clear();
+            otherSectionUris.addAll(other.otherSectionUris);
+            inboxUri = other.inboxUri;
+            otherSectionsUnread = other.otherSectionsUnread;
+            inboxUnread = other.inboxUnread;
+            hasSections = other.hasSections;
+            hasNames = other.hasNames;
+            setTracked(other.tracked);
+            System.arraycopy(other.trackedUnread, 0, trackedUnread, 0, trackedUnread.length);
+            System.arraycopy(other.trackedNames, 0, trackedNames, 0, trackedNames.length);
+            System.arraycopy(other.trackedUris, 0, trackedUris, 0, trackedUris.length);
+        }
+
+        /**
+         * Accumulates a label row.
+         *
+         * @param canonicalName the label's canonical name
+         * @param name the label's display name
+         * @param unreadCount the label's unread conversation count
+         */
+        void addRow(String canonicalName, String name, int unreadCount) {
+            addRow(slotFor(canonicalName), name, null, unreadCount);
+        }
+
+        /**
+         * Accumulates a label row whose slot was already resolved with {@link #slotFor(String)}.
+         *
+         * @param labelUri the label's URI, may be null
+         */
+        void addRow(int slot, String name, String labelUri, int unreadCount) {
+            if (slot >= 0) {
+                hasSections = true;
+                labelNames[slot] = name;
+                labelUris[slot] = labelUri;
+                if (isVisible(slot)) {
+                    unread[slot] += unreadCount;
+                }
+            } else if (slot == SLOT_OTHER_SECTION) {
+                hasSections = true;
+                otherSectionsUnread += unreadCount;
+                if (labelUri != null) {
+                    otherSectionUris.add(labelUri);
+                }
+            } else if (slot == SLOT_INBOX) {
+                // Priority Inbox is a subset of the Inbox, don't count it twice.
+                if (inboxUri == null || unreadCount > inboxUnread) {
+                    inboxUri = labelUri;
+                }
+                inboxUnread = Math.max(inboxUnread, unreadCount);
+            }
+        }
+
+        /**
+         * Accumulates the row of a tracked label.
+         *
+         * @param index the label's index in {@link #tracked}
+         * @param labelUri the label's URI, may be null
+         */
+        void addTrackedRow(int index, String name, String labelUri, int unreadCount) {
+            trackedUnread[index] += unreadCount;
+            trackedNames[index] = name;
+            trackedUris[index] = labelUri;
+        }
+
+        /**
+         * @return true if the slot isn't hidden
+         */
+        boolean isVisible(int slot) {
+            return (hiddenMask & (1 << slot)) == 0;
+        }
+
+        /**
+         * @return true if rows of the given slot count towards the account's unread count
+         */
+        boolean isCounted(int slot) {
+            return slot >= 0 ? isVisible(slot) : slot != SLOT_NONE;
+        }
+
+        /**
+         * Adds the URIs of every label this account's unread count depends on.
+         *
+         * @return false if none of those labels reported a URI
+         */
+        boolean collectLabelUris(Collection<String> out) {
+            for (String uri : trackedUris) {
+                if (uri != null) {
+                    out.add(uri);
+                }
+            }
+            if (!hasSections) {
+                if (inboxUri == null) {
+                    return false;
+                }
+                out.add(inboxUri);
+                return true;
+            }
+            boolean found = !otherSectionUris.isEmpty();
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                if (labelUris[i] != null && isVisible(i)) {
+                    out.add(labelUris[i]);
+                    found = true;
+                }
+            }
+            out.addAll(otherSectionUris);
+            return found;
+        }
+
+        /**
+         * @return the account's unread count, falling back to the Inbox when the account
+         * doesn't use the sectioned inbox
+         */
+        int getUnread() {
+            if (!hasSections) {
+                return inboxUnread;
+            }
+            int total = otherSectionsUnread;
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                total += unread[i];
+            }
+            return total;
+        }
+    }
+
+    private final ArrayList<AccountCounts> mAccounts = new ArrayList<>();
+    private final int[] mTotals = new int[SLOT_COUNT];
+    private final String[] mLabelNames = new String[SLOT_COUNT];
+    private int mAccountCount;
+    private int mHiddenMask;
+    private int mTotalUnread;
+    private TrackedLabels mTracked = TrackedLabels.EMPTY;
+    private int[] mTrackedTotals = new int[0];
+    private String[] mTrackedNames = new String[0];
+
+    /**
+     * Clears the previous results and starts a new aggregation.
+     *
+     * @param hiddenMask slots excluded from every total, see {@link #hiddenMask(Set)}
+     */
+    void begin(int hiddenMask) {
+        begin(hiddenMask, TrackedLabels.EMPTY);
+    }
+
+    /**
+     * @param tracked user labels counted next to the slots
+     */
+    void begin(int hiddenMask, TrackedLabels tracked) {
+        mHiddenMask = hiddenMask;
+        mAccountCount = 0;
+        mTotalUnread = 0;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            mTotals[i] = 0;
+            mLabelNames[i] = null;
+        }
+        mTracked = tracked;
+        if (mTrackedTotals.length != tracked.size()) {
+            mTrackedTotals = new int[tracked.size()];
+            mTrackedNames = new String[tracked.size()];
+        } else {
+            for (int i = 0; i < mTrackedTotals.length; i++) {
+                mTrackedTotals[i] = 0;
+                mTrackedNames[i] = null;
+            }
+        }
+    }
+
+    /**
+     * @return a cleared {@link AccountCounts} to accumulate the rows of the given account into,
+     * which must then be handed to {@link #endAccount(AccountCounts)}
+     */
+    AccountCounts beginAccount(String account) {
+        AccountCounts counts;
+        if (mAccountCount < mAccounts.size()) {
+            counts = mAccounts.get(mAccountCount);
+        } else {
+            counts = new AccountCounts();
+            mAccounts.add(counts);
+        }
+        counts.reset(account, mHiddenMask, mTracked);
+        return counts;
+    }
+
+    /**
+     * Adds an account's counts to the global totals. Accounts without unread conversations
+     * are dropped, their tracked labels still count.
+     */
+    void endAccount(AccountCounts counts) {
+        if (counts.tracked.equals(mTracked)) {
+            for (int i = 0; i < mTrackedTotals.length; i++) {
+                mTrackedTotals[i] += counts.trackedUnread[i];
+                if (mTrackedNames[i] == null) {
+                    mTrackedNames[i] = counts.trackedNames[i];
+                }
+            }
+        }
+        int accountUnread = counts.getUnread();
+        if (accountUnread <= 0) {
+            return;
+        }
+        mAccountCount++;
+        mTotalUnread += accountUnread;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            mTotals[i] += counts.unread[i];
+            if (mLabelNames[i] == null) {
+                mLabelNames[i] = counts.labelNames[i];
+            }
+        }
+    }
+
+    /**
+     * Adds counts accumulated outside of this aggregator, e.g. on another thread. The counts
+     * are copied so the caller may keep the instance.
+     */
+    void addAccount(AccountCounts counts) {
+        AccountCounts copy = beginAccount(counts.account);
+        copy.copyFrom(counts);
+        endAccount(copy);
+    }
+
+    int getTotalUnread() {
+        return mTotalUnread;
+    }
+
+    /**
+     * @return the number of accounts with unread conversations
+     */
+    int getAccountCount() {
+        return mAccountCount;
+    }
+
+    AccountCounts getAccount(int index) {
+        return mAccounts.get(index);
+    }
+
+    int getLabelUnread(int slot) {
+        return mTotals[slot];
+    }
+
+    String getLabelName(int slot) {
+        return mLabelNames[slot];
+    }
+
+    /**
+     * @return the number of tracked labels, see {@link #begin(int, TrackedLabels)}
+     */
+    int getTrackedCount() {
+        return mTrackedTotals.length;
+    }
+
+    int getTrackedUnread(int index) {
+        return mTrackedTotals[index];
+    }
+
+    /**
+     * @return the tracked label's display name, its canonical name if no account reported one
+     */
+    String getTrackedName(int index) {
+        return mTrackedNames[index] != null ? mTrackedNames[index] : mTracked.getCanonicalName(index);
+    }
+}
@@ -0,0 +1,297 @@
+package gabilheri.com.inboxdashclock;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every label of each account, persisted so the settings can offer them without querying
+ * the Gmail provider, and shared by the extension and the settings screen.
+ * <p>
+ * An account's catalog is refreshed in the background once it's older than
+ * {@link #REFRESH_INTERVAL_MS}, also across process restarts. A refresh fetches every label of
+ * the account; labels that didn't change keep their instance.
+ */
+final class LabelCatalog {
+    private static final String TAG = LabelCatalog.class.getSimpleName();
+
+    private static final String FILE_NAME = "labels.catalog";
+    private static final int VERSION = 2;
+
+    static final long REFRESH_INTERVAL_MS = 6 * 60 * 60 * 1000;
+
+    private static LabelCatalog sInstance;
+
+    static final class Label {
+        final String canonicalName;
+        final String name;
+        final String uri;
+        final int textColor;
+        final int backgroundColor;
+
+        Label(String canonicalName, String name, String uri, int textColor, int backgroundColor) {
+            this.canonicalName = canonicalName;
+            this.name = name;
+            this.uri = uri;
+            this.textColor = textColor;
+            this.backgroundColor = backgroundColor;
+        }
+
+        /**
+         * @return true for labels that can be tracked, i.e. anything but the sectioned inbox
+         */
+        boolean isTrackable() {
+            return LabelAggregator.slotFor(canonicalName) == LabelAggregator.SLOT_NONE;
+        }
+
+        boolean sameAs(Label other) {
+            return canonicalName.equals(other.canonicalName)
+                    && equals(name, other.name)
+                    && equals(uri, other.uri)
+                    && textColor == other.textColor
+                    && backgroundColor == other.backgroundColor;
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private static final class AccountCatalog {
+        final Label[] labels;
+        /** Wall clock time of the last refresh. */
+        final long refreshedAt;
+
+        AccountCatalog(Label[] labels, long refreshedAt) {
+            this.labels = labels;
+            this.refreshedAt = refreshedAt;
+        }
+    }
+
+    private interface CatalogQuery {
+        String[] PROJECTION = {
+                InboxContract.Labels.CANONICAL_NAME,
+                InboxContract.Labels.NAME,
+                InboxContract.Labels.URI,
+                InboxContract.Labels.TEXT_COLOR,
+                InboxContract.Labels.BACKGROUND_COLOR,
+        };
+        int CANONICAL_NAME = 0;
+        int NAME = 1;
+        int URI = 2;
+        int TEXT_COLOR = 3;
+        int BACKGROUND_COLOR = 4;
+    }
+
+    private final AtomicFile mFile;
+
+    /** Catalog of each account, null until read from {@link #mFile}. */
+    private HashMap<String, AccountCatalog> mAccounts;
+
+    private LabelCatalog(Context context) {
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    static synchronized LabelCatalog get(Context context) {
+        if (sInstance == null) {
+            sInstance = new LabelCatalog(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return true if the account's labels were never fetched or are getting old
+     */
+    synchronized boolean needsRefresh(String account) {
+        AccountCatalog catalog = load().get(account);
+        if (catalog == null) {
+            return true;
+        }
+        long age = System.currentTimeMillis() - catalog.refreshedAt;
+        // A negative age means the clock was set back
+        return age < 0 || age > REFRESH_INTERVAL_MS;
+    }
+
+    /**
+     * Fetches the account's labels from the Gmail provider. Blocks, must not be called on the
+     * main thread.
+     *
+     * @return false if the provider couldn't be queried
+     */
+    boolean refresh(ContentResolver resolver, String account, Uri labelsUri) {
+        Cursor cursor;
+        try {
+            cursor = resolver.query(labelsUri, CatalogQuery.PROJECTION, null, null, null);
+        } catch (Exception e) {
+            // Same failures as the labels query of the extension
+            Log.e(TAG, "Error opening Inbox labels", e);
+            return false;
+        }
+        if (cursor == null) {
+            return false;
+        }
+
+        ArrayList<Label> labels = new ArrayList<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                String canonicalName = cursor.getString(CatalogQuery.CANONICAL_NAME);
+                if (canonicalName != null) {
+                    labels.add(new Label(canonicalName,
+                            cursor.getString(CatalogQuery.NAME),
+                            cursor.getString(CatalogQuery.URI),
+                            cursor.getInt(CatalogQuery.TEXT_COLOR),
+                            cursor.getInt(CatalogQuery.BACKGROUND_COLOR)));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        update(account, labels);
+        return true;
+    }
+
+    private synchronized void update(String account, List<Label> fetched) {
+        HashMap<String, AccountCatalog> accounts = load();
+        AccountCatalog previous = accounts.get(account);
+        HashMap<String, Label> known = new HashMap<>();
+        if (previous != null) {
+            for (Label label : previous.labels) {
+                known.put(label.canonicalName, label);
+            }
+        }
+
+        Label[] labels = new Label[fetched.size()];
+        for (int i = 0; i < labels.length; i++) {
+            Label label = fetched.get(i);
+            Label old = known.get(label.canonicalName);
+            labels[i] = old != null && old.sameAs(label) ? old : label;
+        }
+
+        // Saved even without changes, for the refresh time
+        accounts.put(account, new AccountCatalog(labels, System.currentTimeMillis()));
+        save(accounts);
+    }
+
+    /**
+     * @return the trackable labels of the given accounts, without duplicates and sorted by
+     * display name
+     */
+    synchronized List<Label> getTrackableLabels(String[] accounts) {
+        HashMap<String, AccountCatalog> catalogs = load();
+        HashMap<String, Label> labels = new HashMap<>();
+        for (String account : accounts) {
+            AccountCatalog catalog = catalogs.get(account);
+            if (catalog == null) {
+                continue;
+            }
+            for (Label label : catalog.labels) {
+                if (label.isTrackable() && !labels.containsKey(label.canonicalName)) {
+                    labels.put(label.canonicalName, label);
+                }
+            }
+        }
+
+        List<Label> sorted = new ArrayList<>(labels.values());
+        Collections.sort(sorted, new Comparator<Label>() {
+            @Override
+            public int compare(Label a, Label b) {
+                String nameA = a.name != null ? a.name : a.canonicalName;
+                String nameB = b.name != null ? b.name : b.canonicalName;
+                return nameA.compareToIgnoreCase(nameB);
+            }
+        });
+        return sorted;
+    }
+
+    private HashMap<String, AccountCatalog> load() {
+        if (mAccounts != null) {
+            return mAccounts;
+        }
+        mAccounts = new HashMap<>();
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(mFile.readFully()));
+            if (in.readInt() != VERSION) {
+                return mAccounts;
+            }
+            int accountCount = in.readInt();
+            for (int i = 0; i < accountCount; i++) {
+                String account = in.readUTF();
+                long refreshedAt = in.readLong();
+                Label[] labels = new Label[in.readInt()];
+                for (int j = 0; j < labels.length; j++) {
+                    labels[j] = new Label(in.readUTF(), readNullableUTF(in), readNullableUTF(in),
+                            in.readInt(), in.readInt());
+                }
+                mAccounts.put(account, new AccountCatalog(labels, refreshedAt));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing fetched yet
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable label catalog", e);
+            mAccounts.clear();
+        }
+        return mAccounts;
+    }
+
+    private void save(Map<String, AccountCatalog> accounts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FileOutputStream out = null;
+        try {
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(VERSION);
+            data.writeInt(accounts.size());
+            for (Map.Entry<String, AccountCatalog> entry : accounts.entrySet()) {
+                data.writeUTF(entry.getKey());
+                data.writeLong(entry.getValue().refreshedAt);
+                Label[] labels = entry.getValue().labels;
+                data.writeInt(labels.length);
+                for (Label label : labels) {
+                    data.writeUTF(label.canonicalName);
+                    writeNullableUTF(data, label.name);
+                    writeNullableUTF(data, label.uri);
+                    data.writeInt(label.textColor);
+                    data.writeInt(label.backgroundColor);
+                }
+            }
+            data.flush();
+
+            out = mFile.startWrite();
+            bytes.writeTo(out);
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't save label catalog", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+}
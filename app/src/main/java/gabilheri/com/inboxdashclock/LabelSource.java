@@ -0,0 +1,100 @@
+package gabilheri.com.inboxdashclock;
+
+/**
+ * Where the label rows of the accounts come from.
+ * <p>
+ * The extension reads the Gmail provider through {@link ProviderLabelSource}. Tests and
+ * benchmarks use {@link MemoryLabelSource} or replay a {@link RecordedLabelSource}, so the
+ * counting runs off-device. Accounts are fetched in batches so an implementation can set up
+ * what the accounts share, e.g. a provider connection, once per refresh.
+ * <p>
+ * Kept free of Android types, see the benchmark module.
+ */
+interface LabelSource {
+
+    /**
+     * Starts fetching the labels of the given accounts.
+     *
+     * @param needNames false if no label names will be displayed, the source may skip them
+     * @param needUris false if the label URIs are already known, the source may skip them
+     */
+    Batch fetch(String[] accounts, boolean needNames, boolean needUris);
+
+    /**
+     * An account's labels couldn't be read.
+     */
+    final class FetchException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        /** True if retrying won't help until the accounts or the source change. */
+        final boolean permanent;
+
+        FetchException(String message, Throwable cause, boolean permanent) {
+            super(message, cause);
+            this.permanent = permanent;
+        }
+    }
+
+    /**
+     * The accounts of one {@link #fetch(String[], boolean, boolean)}.
+     */
+    interface Batch {
+        /**
+         * Opens the rows of an account of the batch. Blocks, may be called concurrently for
+         * different accounts.
+         *
+         * @param index the account's index in the fetched accounts
+         * @return the account's rows, null if the source has no labels for it
+         * @throws FetchException if the query failed
+         */
+        Rows open(int index) throws FetchException;
+
+        /**
+         * Called once the caller is done with the batch. Rows still open stay readable, and
+         * accounts opened afterwards, e.g. by a query that missed its deadline, still work.
+         */
+        void close();
+    }
+
+    /**
+     * Cursor over the label rows of one account. Not thread safe.
+     */
+    interface Rows {
+        /**
+         * @return false past the last row
+         */
+        boolean moveToNext();
+
+        /**
+         * @return the canonical name of the current row, only valid up to
+         * {@link #getCanonicalNameLength()} and until the next move
+         */
+        char[] getCanonicalName();
+
+        int getCanonicalNameLength();
+
+        int getUnread();
+
+        /**
+         * @return the display name, null if the source has none
+         */
+        String getName();
+
+        /**
+         * @return the label's URI, may be null
+         */
+        String getUri();
+
+        /**
+         * @return false if the source doesn't report display names
+         */
+        boolean hasNames();
+
+        /**
+         * @return false if the source doesn't report label URIs
+         */
+        boolean hasUris();
+
+        void close();
+    }
+}
@@ -0,0 +1,105 @@
+package gabilheri.com.inboxdashclock;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watches the label URIs of each account with an observer of its own, so a change
+ * notification tells which account changed.
+ * <p>
+ * DashClock's own URI watching only reports that something changed. Having one observer per
+ * account also works before API 16, where observers aren't told the changed URI. The observers
+ * die with our process, DashClock's watching is still needed to wake the extension up.
+ * Must be used from the thread of the {@link Handler} it's given.
+ */
+final class LabelsWatcher {
+
+    interface Listener {
+        /**
+         * Called on the watcher's thread when labels of the account changed.
+         */
+        void onAccountChanged(String account);
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final HashMap<String, AccountObserver> mObservers = new HashMap<>();
+
+    private final class AccountObserver extends ContentObserver {
+        final String account;
+        final Set<String> uris;
+
+        AccountObserver(String account, Set<String> uris) {
+            super(mHandler);
+            this.account = account;
+            this.uris = uris;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mListener.onAccountChanged(account);
+        }
+    }
+
+    LabelsWatcher(ContentResolver resolver, Handler handler, Listener listener) {
+        mResolver = resolver;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Watches exactly the given URIs for the account, replacing what was watched for it
+     * before. Nothing is re-registered if the URIs didn't change.
+     */
+    void watch(String account, Set<String> uris) {
+        AccountObserver observer = mObservers.get(account);
+        if (observer != null) {
+            if (observer.uris.equals(uris)) {
+                return;
+            }
+            mResolver.unregisterContentObserver(observer);
+        }
+        observer = new AccountObserver(account, uris);
+        for (String uri : uris) {
+            mResolver.registerContentObserver(Uri.parse(uri), true, observer);
+        }
+        mObservers.put(account, observer);
+    }
+
+    /**
+     * Stops watching the accounts that aren't in the given sorted array.
+     */
+    void retain(String[] accounts) {
+        Iterator<Map.Entry<String, AccountObserver>> it = mObservers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, AccountObserver> entry = it.next();
+            if (Arrays.binarySearch(accounts, entry.getKey()) < 0) {
+                mResolver.unregisterContentObserver(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of accounts being watched
+     */
+    int getAccountCount() {
+        return mObservers.size();
+    }
+
+    void unwatchAll() {
+        for (AccountObserver observer : mObservers.values()) {
+            mResolver.unregisterContentObserver(observer);
+        }
+        mObservers.clear();
+    }
+}
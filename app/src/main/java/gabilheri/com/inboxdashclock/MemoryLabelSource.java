@@ -0,0 +1,136 @@
+package gabilheri.com.inboxdashclock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Labels held in memory, for tests and benchmarks. Accounts without labels can't be read,
+ * like an account the provider doesn't know.
+ * <p>
+ * Labels are added up front, fetching may then happen from any thread.
+ */
+final class MemoryLabelSource implements LabelSource {
+
+    private static final class Label {
+        final char[] canonicalName;
+        final String name;
+        final String uri;
+        final int unread;
+
+        Label(String canonicalName, String name, String uri, int unread) {
+            this.canonicalName = canonicalName.toCharArray();
+            this.name = name;
+            this.uri = uri;
+            this.unread = unread;
+        }
+    }
+
+    private final HashMap<String, ArrayList<Label>> mAccounts = new HashMap<>();
+    private final boolean mHasNames;
+
+    MemoryLabelSource() {
+        this(true);
+    }
+
+    /**
+     * @param hasNames false to act like a provider without display names
+     */
+    MemoryLabelSource(boolean hasNames) {
+        mHasNames = hasNames;
+    }
+
+    /**
+     * Adds a label row to the account, after its previous ones.
+     */
+    MemoryLabelSource addLabel(String account, String canonicalName, String name, String uri, int unread) {
+        ArrayList<Label> labels = mAccounts.get(account);
+        if (labels == null) {
+            labels = new ArrayList<>();
+            mAccounts.put(account, labels);
+        }
+        labels.add(new Label(canonicalName, name, uri, unread));
+        return this;
+    }
+
+    /**
+     * Like the provider, names and URIs that weren't asked for are left out.
+     */
+    @Override
+    public Batch fetch(final String[] accounts, final boolean needNames, final boolean needUris) {
+        return new Batch() {
+            @Override
+            public Rows open(int index) {
+                ArrayList<Label> labels = mAccounts.get(accounts[index]);
+                return labels != null ? new LabelRows(labels, mHasNames && needNames, needUris) : null;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static final class LabelRows implements Rows {
+        private final ArrayList<Label> mLabels;
+        private final boolean mHasNames;
+        private final boolean mHasUris;
+        private int mPosition = -1;
+        private Label mLabel;
+
+        LabelRows(ArrayList<Label> labels, boolean hasNames, boolean hasUris) {
+            mLabels = labels;
+            mHasNames = hasNames;
+            mHasUris = hasUris;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            if (mPosition + 1 >= mLabels.size()) {
+                mPosition = mLabels.size();
+                mLabel = null;
+                return false;
+            }
+            mLabel = mLabels.get(++mPosition);
+            return true;
+        }
+
+        @Override
+        public char[] getCanonicalName() {
+            return mLabel.canonicalName;
+        }
+
+        @Override
+        public int getCanonicalNameLength() {
+            return mLabel.canonicalName.length;
+        }
+
+        @Override
+        public int getUnread() {
+            return mLabel.unread;
+        }
+
+        @Override
+        public String getName() {
+            return mHasNames ? mLabel.name : null;
+        }
+
+        @Override
+        public String getUri() {
+            return mHasUris ? mLabel.uri : null;
+        }
+
+        @Override
+        public boolean hasNames() {
+            return mHasNames;
+        }
+
+        @Override
+        public boolean hasUris() {
+            return mHasUris;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
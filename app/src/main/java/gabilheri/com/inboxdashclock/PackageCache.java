@@ -0,0 +1,157 @@
+package gabilheri.com.inboxdashclock;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+
+/**
+ * Caches what the extension needs to know about other packages: whether the installed Gmail
+ * lets us read its labels and the launch intent of Inbox.
+ * <p>
+ * Both come from expensive {@link PackageManager} calls, so they're computed once and kept
+ * until a package broadcast reports a change. Even then they're only recomputed if the
+ * package's lastUpdateTime or versionCode actually changed.
+ */
+final class PackageCache extends BroadcastReceiver {
+
+    static final String INBOX_PACKAGE = "com.google.android.apps.inbox";
+
+    private final Context mContext;
+
+    private volatile Entry mGmail;
+    private volatile Entry mInbox;
+    private volatile int mGmailChanges;
+
+    private static final class Entry {
+        final boolean installed;
+        final long lastUpdateTime;
+        final int versionCode;
+        final boolean canReadLabels;
+        final Intent launchIntent;
+        /** Set when a package broadcast mentioned the package. */
+        volatile boolean stale;
+
+        Entry(PackageInfo info, boolean canReadLabels, Intent launchIntent) {
+            this.installed = info != null;
+            this.lastUpdateTime = info != null ? info.lastUpdateTime : 0;
+            this.versionCode = info != null ? info.versionCode : 0;
+            this.canReadLabels = canReadLabels;
+            this.launchIntent = launchIntent;
+        }
+
+        boolean matches(PackageInfo info) {
+            if (info == null) {
+                return !installed;
+            }
+            return installed && info.lastUpdateTime == lastUpdateTime && info.versionCode == versionCode;
+        }
+    }
+
+    PackageCache(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Starts listening for package changes.
+     */
+    void register() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(this, filter);
+    }
+
+    void unregister() {
+        mContext.unregisterReceiver(this);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Uri data = intent.getData();
+        String packageName = data != null ? data.getSchemeSpecificPart() : null;
+        // Components can be enabled or disabled without the version changing
+        boolean componentsChanged = Intent.ACTION_PACKAGE_CHANGED.equals(intent.getAction());
+        if (InboxContract.PACKAGE.equals(packageName)) {
+            if (componentsChanged) {
+                mGmail = null;
+            } else {
+                markStale(mGmail);
+            }
+        } else if (INBOX_PACKAGE.equals(packageName)) {
+            if (componentsChanged) {
+                mInbox = null;
+            } else {
+                markStale(mInbox);
+            }
+        }
+    }
+
+    private static void markStale(Entry entry) {
+        if (entry != null) {
+            entry.stale = true;
+        }
+    }
+
+    /**
+     * Cached {@link InboxContract#canReadLabels(Context)}.
+     */
+    boolean canReadLabels() {
+        Entry entry = mGmail;
+        if (entry == null || !revalidate(entry, InboxContract.PACKAGE)) {
+            entry = new Entry(getPackageInfo(InboxContract.PACKAGE), InboxContract.canReadLabels(mContext), null);
+            mGmail = entry;
+            mGmailChanges++;
+        }
+        return entry.canReadLabels;
+    }
+
+    /**
+     * @return a number that changes whenever {@link #canReadLabels()} found Gmail changed, or
+     * computed it for the first time
+     */
+    int getGmailChangeCount() {
+        return mGmailChanges;
+    }
+
+    /**
+     * @return the cached launch intent of Inbox, null if it isn't installed
+     */
+    Intent getInboxLaunchIntent() {
+        Entry entry = mInbox;
+        if (entry == null || !revalidate(entry, INBOX_PACKAGE)) {
+            entry = new Entry(getPackageInfo(INBOX_PACKAGE), false,
+                    mContext.getPackageManager().getLaunchIntentForPackage(INBOX_PACKAGE));
+            mInbox = entry;
+        }
+        return entry.launchIntent;
+    }
+
+    /**
+     * @return false if the entry is stale and the package really changed
+     */
+    private boolean revalidate(Entry entry, String packageName) {
+        if (!entry.stale) {
+            return true;
+        }
+        if (!entry.matches(getPackageInfo(packageName))) {
+            return false;
+        }
+        entry.stale = false;
+        return true;
+    }
+
+    private PackageInfo getPackageInfo(String packageName) {
+        try {
+            return mContext.getPackageManager().getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package gabilheri.com.inboxdashclock;
+
+import android.annotation.TargetApi;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.DeadObjectException;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the labels from the Gmail provider, see {@link InboxContract}.
+ * <p>
+ * A batch acquires the provider once and runs the query of every account through that
+ * {@link ContentProviderClient}, instead of having the resolver look up and acquire the
+ * provider for each query. The client is released once the batch and every cursor it opened
+ * are closed. Queries only ask for the columns the batch needs.
+ */
+final class ProviderLabelSource implements LabelSource {
+    private static final String TAG = ProviderLabelSource.class.getSimpleName();
+
+    /**
+     * Longest system canonical name we match is "^sq_ig_i_notification", leave some room. The
+     * buffer grows for longer user label names.
+     */
+    private static final int CANONICAL_NAME_BUFFER_SIZE = 64;
+
+    /**
+     * Each query thread keeps its own buffer.
+     */
+    private static final ThreadLocal<CharArrayBuffer> sCanonicalName = new ThreadLocal<CharArrayBuffer>() {
+        @Override
+        protected CharArrayBuffer initialValue() {
+            return new CharArrayBuffer(CANONICAL_NAME_BUFFER_SIZE);
+        }
+    };
+
+    private interface LabelsQuery {
+        int WITH_NAMES = 1;
+        int WITH_URIS = 2;
+
+        /** Indexed by the WITH_ flags. */
+        String[][] PROJECTIONS = {
+                {
+                        InboxContract.Labels.NUM_UNREAD_CONVERSATIONS,
+                        InboxContract.Labels.CANONICAL_NAME,
+                },
+                {
+                        InboxContract.Labels.NUM_UNREAD_CONVERSATIONS,
+                        InboxContract.Labels.CANONICAL_NAME,
+                        InboxContract.Labels.NAME,
+                },
+                {
+                        InboxContract.Labels.NUM_UNREAD_CONVERSATIONS,
+                        InboxContract.Labels.CANONICAL_NAME,
+                        InboxContract.Labels.URI,
+                },
+                {
+                        InboxContract.Labels.NUM_UNREAD_CONVERSATIONS,
+                        InboxContract.Labels.CANONICAL_NAME,
+                        InboxContract.Labels.NAME,
+                        InboxContract.Labels.URI,
+                },
+        };
+    }
+
+    private final ContentResolver mResolver;
+    private final AccountRegistry mAccountRegistry;
+
+    ProviderLabelSource(ContentResolver resolver, AccountRegistry accountRegistry) {
+        mResolver = resolver;
+        mAccountRegistry = accountRegistry;
+    }
+
+    @Override
+    public Batch fetch(String[] accounts, boolean needNames, boolean needUris) {
+        int columns = (needNames ? LabelsQuery.WITH_NAMES : 0) | (needUris ? LabelsQuery.WITH_URIS : 0);
+        return new ProviderBatch(accounts, LabelsQuery.PROJECTIONS[columns], acquireClient());
+    }
+
+    private ContentProviderClient acquireClient() {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                return acquireUnstableClient();
+            }
+            return mResolver.acquireContentProviderClient(InboxContract.AUTHORITY);
+        } catch (Exception e) {
+            // Same failures as the queries, which go through the resolver then
+            Log.w(TAG, "Couldn't acquire the Gmail provider", e);
+            return null;
+        }
+    }
+
+    /**
+     * The Gmail process dying doesn't take ours down with an unstable client.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private ContentProviderClient acquireUnstableClient() {
+        return mResolver.acquireUnstableContentProviderClient(InboxContract.AUTHORITY);
+    }
+
+    private final class ProviderBatch implements Batch {
+        private final String[] mAccounts;
+        private final String[] mProjection;
+        /** Null if the provider couldn't be acquired, or once released. */
+        private ContentProviderClient mClient;
+        /** The batch itself plus every open cursor, the client is released at 0. */
+        private final AtomicInteger mRefs = new AtomicInteger(1);
+
+        ProviderBatch(String[] accounts, String[] projection, ContentProviderClient client) {
+            mAccounts = accounts;
+            mProjection = projection;
+            mClient = client;
+        }
+
+        @Override
+        public Rows open(int index) throws FetchException {
+            Cursor cursor = null;
+            boolean retained = retain();
+            try {
+                cursor = query(mAccountRegistry.getLabelsUri(mAccounts[index]), retained);
+            } finally {
+                if (cursor == null && retained) {
+                    release();
+                }
+            }
+            CursorRows rows = new CursorRows(cursor, sCanonicalName.get(), retained ? this : null);
+            if (!rows.isValid()) {
+                rows.close();
+                // This Gmail doesn't have the columns we count with
+                throw new FetchException("Missing labels columns", null, true);
+            }
+            return rows;
+        }
+
+        /**
+         * @param useClient false to go through the resolver
+         */
+        private Cursor query(Uri labelsUri, boolean useClient) throws FetchException {
+            ContentProviderClient client = useClient ? getClient() : null;
+            Cursor cursor = null;
+            boolean queried = false;
+            if (client != null) {
+                try {
+                    cursor = client.query(labelsUri, mProjection,
+                            null, // NOTE: the Labels API doesn't allow selections here
+                            null, null);
+                    queried = true;
+                } catch (DeadObjectException e) {
+                    // Gmail died since the batch started, the resolver connects to it again.
+                    Log.w(TAG, "Gmail provider died, querying through the resolver", e);
+                } catch (Exception e) {
+                    throw failure(e);
+                }
+            }
+
+            if (!queried) {
+                try {
+                    cursor = mResolver.query(labelsUri, mProjection,
+                            null, // NOTE: the Labels API doesn't allow selections here
+                            null,
+                            null);
+
+                } catch (Exception e) {
+                    throw failure(e);
+                }
+            }
+            if (cursor == null) {
+                // Gmail couldn't serve it right now, e.g. while it starts
+                throw new FetchException("No labels cursor", null, false);
+            }
+            return cursor;
+        }
+
+        private synchronized ContentProviderClient getClient() {
+            return mClient;
+        }
+
+        /**
+         * @return false if the client was already released, queries then go through the resolver
+         */
+        private boolean retain() {
+            int refs;
+            do {
+                refs = mRefs.get();
+                if (refs == 0) {
+                    return false;
+                }
+            } while (!mRefs.compareAndSet(refs, refs + 1));
+            return true;
+        }
+
+        void release() {
+            if (mRefs.decrementAndGet() != 0) {
+                return;
+            }
+            ContentProviderClient client;
+            synchronized (this) {
+                client = mClient;
+                mClient = null;
+            }
+            if (client != null) {
+                client.release();
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+
+    /**
+     * Classifies a query failure.
+     */
+    private static FetchException failure(Exception e) {
+        Log.e(TAG, "Error opening Inbox labels", e);
+        // From developer console: "Permission Denial: opening provider com.google.android.gsf..
+        // From developer console: "SQLiteException: no such table: labels"
+        // From developer console: "NullPointerException"
+        // The first two won't go away until the accounts or Gmail change. A URI Gmail doesn't
+        // know is an account it doesn't know.
+        String message = e.getMessage();
+        boolean permanent = e instanceof SecurityException || e instanceof IllegalArgumentException
+                || (message != null && message.contains("no such table"));
+        return new FetchException("Error opening Inbox labels", e, permanent);
+    }
+
+    /**
+     * Column indices are resolved once per cursor and canonical names are copied into a reused
+     * {@link CharArrayBuffer}, so moving over rows doesn't allocate.
+     */
+    private static final class CursorRows implements Rows {
+        private final Cursor mCursor;
+        private final CharArrayBuffer mCanonicalName;
+        /** Released on close, null if the cursor doesn't hold a reference to it. */
+        private final ProviderBatch mBatch;
+        private final int mUnreadColumn;
+        private final int mCanonicalNameColumn;
+        private final int mNameColumn;
+        private final int mUriColumn;
+
+        CursorRows(Cursor cursor, CharArrayBuffer canonicalName, ProviderBatch batch) {
+            mCursor = cursor;
+            mCanonicalName = canonicalName;
+            mBatch = batch;
+            mUnreadColumn = cursor.getColumnIndex(InboxContract.Labels.NUM_UNREAD_CONVERSATIONS);
+            mCanonicalNameColumn = cursor.getColumnIndex(InboxContract.Labels.CANONICAL_NAME);
+            mNameColumn = cursor.getColumnIndex(InboxContract.Labels.NAME);
+            mUriColumn = cursor.getColumnIndex(InboxContract.Labels.URI);
+        }
+
+        boolean isValid() {
+            return mUnreadColumn >= 0 && mCanonicalNameColumn >= 0;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            if (!mCursor.moveToNext()) {
+                return false;
+            }
+            mCursor.copyStringToBuffer(mCanonicalNameColumn, mCanonicalName);
+            return true;
+        }
+
+        @Override
+        public char[] getCanonicalName() {
+            return mCanonicalName.data;
+        }
+
+        @Override
+        public int getCanonicalNameLength() {
+            return mCanonicalName.sizeCopied;
+        }
+
+        @Override
+        public int getUnread() {
+            return mCursor.getInt(mUnreadColumn);
+        }
+
+        @Override
+        public String getName() {
+            return mNameColumn >= 0 ? mCursor.getString(mNameColumn) : null;
+        }
+
+        @Override
+        public String getUri() {
+            return mUriColumn >= 0 ? mCursor.getString(mUriColumn) : null;
+        }
+
+        @Override
+        public boolean hasNames() {
+            return mNameColumn >= 0;
+        }
+
+        @Override
+        public boolean hasUris() {
+            return mUriColumn >= 0;
+        }
+
+        @Override
+        public void close() {
+            mCursor.close();
+            if (mBatch != null) {
+                mBatch.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package gabilheri.com.inboxdashclock;
+
+/**
+ * Remembers a fingerprint of the last published extension data so identical updates
+ * don't get published again.
+ * <p>
+ * Publishing costs an IPC to DashClock and a re-render of every widget showing the
+ * extension, while most refreshes end up with the same counts as the previous one.
+ */
+final class PublishFilter {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private long mLastFingerprint;
+    private boolean mHasPublished;
+    private int mSkippedCount;
+
+    /**
+     * @return true if the data differs from the last published one and must be published,
+     * in which case it becomes the new reference
+     */
+    boolean shouldPublish(boolean visible, String status, String title, String body, boolean clickable) {
+        long fingerprint = fingerprint(visible, status, title, body, clickable);
+        if (mHasPublished && fingerprint == mLastFingerprint) {
+            mSkippedCount++;
+            return false;
+        }
+        mLastFingerprint = fingerprint;
+        mHasPublished = true;
+        return true;
+    }
+
+    /**
+     * Forgets the last published data, e.g. when DashClock reconnects and may have lost it.
+     */
+    void reset() {
+        mHasPublished = false;
+    }
+
+    /**
+     * @return the number of publishes avoided so far
+     */
+    int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the published fields.
+     */
+    static long fingerprint(boolean visible, String status, String title, String body, boolean clickable) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = (hash ^ (visible ? 1 : 0)) * FNV_PRIME;
+        hash = (hash ^ (clickable ? 1 : 0)) * FNV_PRIME;
+        hash = hash(hash, status);
+        hash = hash(hash, title);
+        hash = hash(hash, body);
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null) {
+            return (hash ^ 0xff) * FNV_PRIME;
+        }
+        for (int i = 0, len = value.length(); i < len; i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        // Terminate each field so "ab" + "c" and "a" + "bc" differ
+        return (hash ^ 0xfe) * FNV_PRIME;
+    }
+}
@@ -0,0 +1,117 @@
+package gabilheri.com.inboxdashclock;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Replays label rows recorded from another source, typically the Gmail provider of a real
+ * device, so tests and benchmarks run against real label tables. The diagnostics settings
+ * export a recording of the device's labels.
+ * <p>
+ * A recording is the format version followed by each account and its rows, see
+ * {@link #record(LabelSource, String[], OutputStream)}. Accounts that couldn't be read when
+ * recording can't be read when replaying either.
+ */
+final class RecordedLabelSource implements LabelSource {
+
+    private static final int VERSION = 1;
+
+    private final String[] mAccounts;
+    private final MemoryLabelSource mLabels;
+
+    private RecordedLabelSource(String[] accounts, MemoryLabelSource labels) {
+        mAccounts = accounts;
+        mLabels = labels;
+    }
+
+    /**
+     * Reads every row of the given accounts, with their names, and writes them to out.
+     * Accounts that fail are recorded as unreadable.
+     */
+    static void record(LabelSource source, String[] accounts, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(VERSION);
+        data.writeInt(accounts.length);
+        Batch batch = source.fetch(accounts, true, true);
+        try {
+            for (int i = 0; i < accounts.length; i++) {
+                data.writeUTF(accounts[i]);
+                Rows rows;
+                try {
+                    rows = batch.open(i);
+                } catch (FetchException e) {
+                    rows = null;
+                }
+                data.writeBoolean(rows != null);
+                if (rows == null) {
+                    continue;
+                }
+                try {
+                    while (rows.moveToNext()) {
+                        data.writeBoolean(true);
+                        data.writeUTF(new String(rows.getCanonicalName(), 0, rows.getCanonicalNameLength()));
+                        writeNullableUTF(data, rows.getName());
+                        writeNullableUTF(data, rows.getUri());
+                        data.writeInt(rows.getUnread());
+                    }
+                    data.writeBoolean(false);
+                } finally {
+                    rows.close();
+                }
+            }
+        } finally {
+            batch.close();
+        }
+        data.flush();
+    }
+
+    /**
+     * @throws IOException if in doesn't hold a recording of this version
+     */
+    static RecordedLabelSource read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+        }
+        String[] accounts = new String[data.readInt()];
+        MemoryLabelSource labels = new MemoryLabelSource();
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = data.readUTF();
+            if (!data.readBoolean()) {
+                continue;
+            }
+            while (data.readBoolean()) {
+                labels.addLabel(accounts[i], data.readUTF(), readNullableUTF(data),
+                        readNullableUTF(data), data.readInt());
+            }
+        }
+        return new RecordedLabelSource(accounts, labels);
+    }
+
+    /**
+     * @return the recorded accounts, including the ones that couldn't be read
+     */
+    String[] getAccounts() {
+        return mAccounts.clone();
+    }
+
+    @Override
+    public Batch fetch(String[] accounts, boolean needNames, boolean needUris) {
+        return mLabels.fetch(accounts, needNames, needUris);
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package gabilheri.com.inboxdashclock;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Decides how often each account may be queried after its labels changed.
+ * <p>
+ * Notifications until the account is queried make up one burst, e.g. a sync touching several
+ * labels, and count as a single change. Every account starts at the base interval. When an
+ * account changes again before it was even due after the query of its previous change, e.g.
+ * an account syncing mail all day, the interval doubles up to a maximum. It halves back once
+ * a change comes in more than two intervals after the last query. Must be used from a single
+ * thread.
+ */
+final class RefreshPolicy {
+
+    private final long mBaseIntervalMs;
+    private final long mMaxIntervalMs;
+    private final HashMap<String, State> mStates = new HashMap<>();
+
+    private static final class State {
+        long intervalMs;
+        long lastQuery;
+        /** A burst started since the last query. */
+        boolean changed;
+        /** The last query was for a burst, not only part of a full refresh. */
+        boolean queriedChange;
+    }
+
+    /**
+     * @param baseIntervalMs interval of accounts that rarely change
+     * @param maxIntervalMs longest interval of accounts that keep changing
+     */
+    RefreshPolicy(long baseIntervalMs, long maxIntervalMs) {
+        mBaseIntervalMs = baseIntervalMs;
+        mMaxIntervalMs = maxIntervalMs;
+    }
+
+    private State getState(String account) {
+        State state = mStates.get(account);
+        if (state == null) {
+            state = new State();
+            state.intervalMs = mBaseIntervalMs;
+            mStates.put(account, state);
+        }
+        return state;
+    }
+
+    /**
+     * Called for every change notification of the account, only the first one since the
+     * account was last queried counts.
+     *
+     * @param now an uptime
+     */
+    void onChanged(String account, long now) {
+        State state = getState(account);
+        if (state.changed) {
+            return;
+        }
+        state.changed = true;
+        long sinceQuery = now - state.lastQuery;
+        if (sinceQuery > state.intervalMs * 2) {
+            state.intervalMs = Math.max(state.intervalMs / 2, mBaseIntervalMs);
+        } else if (state.queriedChange && sinceQuery < state.intervalMs) {
+            state.intervalMs = Math.min(state.intervalMs * 2, mMaxIntervalMs);
+        }
+    }
+
+    void onQueried(String account, long now) {
+        State state = getState(account);
+        state.lastQuery = now;
+        state.queriedChange = state.changed;
+        state.changed = false;
+    }
+
+    /**
+     * @return true if the account's interval elapsed since it was last queried
+     */
+    boolean isDue(String account, long now) {
+        State state = mStates.get(account);
+        return state == null || now - state.lastQuery >= state.intervalMs;
+    }
+
+    /**
+     * @return the earliest uptime at which one of the accounts is due
+     */
+    long getNextDueTime(Collection<String> accounts) {
+        long next = Long.MAX_VALUE;
+        for (String account : accounts) {
+            State state = mStates.get(account);
+            next = Math.min(next, state != null ? state.lastQuery + state.intervalMs : 0);
+        }
+        return next;
+    }
+
+    long getInterval(String account) {
+        State state = mStates.get(account);
+        return state != null ? state.intervalMs : mBaseIntervalMs;
+    }
+}
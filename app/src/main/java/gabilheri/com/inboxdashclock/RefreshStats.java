@@ -0,0 +1,116 @@
+package gabilheri.com.inboxdashclock;
+
+import java.util.Locale;
+
+/**
+ * Process-wide timings and counters of the extension updates and of the settings startup,
+ * shown in the diagnostics section of the settings.
+ * <p>
+ * Durations are recorded in microseconds.
+ */
+final class RefreshStats {
+
+    private static final int HISTOGRAM_SIZE = 256;
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    private static final RefreshStats sInstance = new RefreshStats();
+
+    /** Latency of a single account's labels query, including reading the rows. */
+    final RollingHistogram queryTime = new RollingHistogram(HISTOGRAM_SIZE);
+    /** Label rows scanned per account. */
+    final RollingHistogram rowsScanned = new RollingHistogram(HISTOGRAM_SIZE);
+    final RollingHistogram aggregateTime = new RollingHistogram(HISTOGRAM_SIZE);
+    final RollingHistogram renderTime = new RollingHistogram(HISTOGRAM_SIZE);
+    final RollingHistogram publishTime = new RollingHistogram(HISTOGRAM_SIZE);
+    /** Whole update, from the first query to the publish. */
+    final RollingHistogram updateTime = new RollingHistogram(HISTOGRAM_SIZE);
+    /** From the creation of the settings activity to its first frame. */
+    final RollingHistogram settingsFirstFrameTime = new RollingHistogram(HISTOGRAM_SIZE);
+    /**
+     * From the extension's bind, or the process start if the process was started for it, to
+     * its first publish.
+     */
+    final RollingHistogram bindToFirstPublishTime = new RollingHistogram(HISTOGRAM_SIZE);
+
+    private volatile int mUpdateRequests;
+    private volatile int mUpdates;
+    private volatile int mPublishes;
+    private volatile int mSkippedPublishes;
+
+    static RefreshStats get() {
+        return sInstance;
+    }
+
+    private RefreshStats() {}
+
+    static long elapsedMicros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    // Counters are only written from the extension's update thread
+
+    void onUpdateRequested() {
+        mUpdateRequests++;
+    }
+
+    void onUpdate() {
+        mUpdates++;
+    }
+
+    void onPublish() {
+        mPublishes++;
+    }
+
+    void onPublishSkipped() {
+        mSkippedPublishes++;
+    }
+
+    /**
+     * @return a one line summary of the update time, or null if nothing was recorded yet
+     */
+    String summary() {
+        long[] values = new long[PERCENTILES.length];
+        if (updateTime.percentiles(PERCENTILES, values) == 0) {
+            return null;
+        }
+        return String.format(Locale.US, "Update p50 %s, p95 %s, p99 %s",
+                formatMicros(values[0]), formatMicros(values[1]), formatMicros(values[2]));
+    }
+
+    /**
+     * @return every timing and counter, human readable
+     */
+    String format() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "Update requests: %d\nUpdates: %d\nPublishes: %d\nSkipped publishes: %d\n",
+                mUpdateRequests, mUpdates, mPublishes, mSkippedPublishes));
+        appendHistogram(sb, "Query per account", queryTime, true);
+        appendHistogram(sb, "Rows per account", rowsScanned, false);
+        appendHistogram(sb, "Aggregation", aggregateTime, true);
+        appendHistogram(sb, "Render", renderTime, true);
+        appendHistogram(sb, "Publish", publishTime, true);
+        appendHistogram(sb, "Whole update", updateTime, true);
+        appendHistogram(sb, "Settings first frame", settingsFirstFrameTime, true);
+        appendHistogram(sb, BuildConfig.DEFER_CRASH_REPORTING
+                ? "Bind to first publish, deferred crash reporting"
+                : "Bind to first publish, eager crash reporting", bindToFirstPublishTime, true);
+        return sb.toString();
+    }
+
+    private static void appendHistogram(StringBuilder sb, String name, RollingHistogram histogram, boolean micros) {
+        long[] values = new long[PERCENTILES.length];
+        int samples = histogram.percentiles(PERCENTILES, values);
+        sb.append('\n').append(name).append(" (").append(samples).append(" samples)");
+        if (samples == 0) {
+            return;
+        }
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            sb.append("\n  p").append((int) PERCENTILES[i]).append(": ")
+                    .append(micros ? formatMicros(values[i]) : Long.toString(values[i]));
+        }
+    }
+
+    private static String formatMicros(long micros) {
+        return String.format(Locale.US, "%.1f ms", micros / 1000f);
+    }
+}
@@ -0,0 +1,71 @@
+package gabilheri.com.inboxdashclock;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the last samples of a measurement in a fixed-size ring and computes percentiles
+ * over them on demand.
+ * <p>
+ * Recording is a couple of array writes, all the work happens when percentiles are read.
+ * Safe to use from several threads.
+ */
+final class RollingHistogram {
+
+    private final long[] mSamples;
+    private final long[] mSorted;
+    private int mNext;
+    private int mSize;
+    private long mTotalCount;
+
+    /**
+     * @param capacity how many of the latest samples are kept
+     */
+    RollingHistogram(int capacity) {
+        mSamples = new long[capacity];
+        mSorted = new long[capacity];
+    }
+
+    synchronized void record(long value) {
+        mSamples[mNext] = value;
+        mNext = (mNext + 1) % mSamples.length;
+        if (mSize < mSamples.length) {
+            mSize++;
+        }
+        mTotalCount++;
+    }
+
+    /**
+     * @return the number of samples ever recorded
+     */
+    synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Computes percentiles over the kept samples.
+     *
+     * @param percentiles the wanted percentiles, between 0 and 100
+     * @param out receives one value per percentile, nearest-rank
+     * @return the number of samples the percentiles were computed from
+     */
+    synchronized int percentiles(double[] percentiles, long[] out) {
+        final int size = mSize;
+        if (size == 0) {
+            Arrays.fill(out, 0, percentiles.length, 0);
+            return 0;
+        }
+        System.arraycopy(mSamples, 0, mSorted, 0, size);
+        Arrays.sort(mSorted, 0, size);
+        for (int i = 0; i < percentiles.length; i++) {
+            int rank = (int) Math.ceil(percentiles[i] / 100 * size);
+            out[i] = mSorted[Math.min(Math.max(rank, 1), size) - 1];
+        }
+        return size;
+    }
+
+    synchronized void clear() {
+        mNext = 0;
+        mSize = 0;
+        mTotalCount = 0;
+    }
+}
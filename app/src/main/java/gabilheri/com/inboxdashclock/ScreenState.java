@@ -0,0 +1,79 @@
+package gabilheri.com.inboxdashclock;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+
+/**
+ * Tracks whether the screen is on, so refreshes nobody can see can be held back.
+ */
+final class ScreenState extends BroadcastReceiver {
+
+    interface Listener {
+        /**
+         * Called on the registration handler's thread when the screen turns on or off.
+         */
+        void onScreenStateChanged(boolean screenOn);
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+
+    private volatile boolean mScreenOn = true;
+    private boolean mRegistered;
+
+    ScreenState(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+    }
+
+    /**
+     * Starts listening for screen changes.
+     *
+     * @param handler where the screen change callbacks are delivered
+     */
+    void register(Handler handler) {
+        if (mRegistered) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        mContext.registerReceiver(this, filter, null, handler);
+        mRegistered = true;
+        mScreenOn = queryScreenOn();
+    }
+
+    void unregister() {
+        if (mRegistered) {
+            mContext.unregisterReceiver(this);
+            mRegistered = false;
+        }
+    }
+
+    boolean isScreenOn() {
+        return mScreenOn;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        boolean screenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+        if (screenOn != mScreenOn) {
+            mScreenOn = screenOn;
+            mListener.onScreenStateChanged(screenOn);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean queryScreenOn() {
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+            return pm.isInteractive();
+        }
+        return pm.isScreenOn();
+    }
+}
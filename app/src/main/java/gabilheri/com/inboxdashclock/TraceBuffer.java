@@ -0,0 +1,208 @@
+package gabilheri.com.inboxdashclock;
+
+import android.os.Process;
+
+/**
+ * Process-wide ring buffer of refresh trace events, exported from the diagnostics section of
+ * the settings in the Chrome trace format, which Perfetto and chrome://tracing open.
+ * <p>
+ * Events are fixed-size records of primitives stored in preallocated arrays, so recording one
+ * doesn't allocate. When tracing is off, which is the default, recording is a single volatile
+ * read. Once full, the oldest events are overwritten.
+ */
+final class TraceBuffer {
+
+    private static final int CAPACITY = 1024;
+
+    /** Threads whose names are kept for the export, the update thread and the query threads. */
+    private static final int MAX_NAMED_THREADS = 16;
+
+    /** Whole update, the arg is the update reason. */
+    static final int EVENT_UPDATE = 0;
+    /** Labels query of one account, the arg is the number of rows scanned. */
+    static final int EVENT_QUERY = 1;
+    /** The arg is the number of accounts with unread conversations. */
+    static final int EVENT_AGGREGATE = 2;
+    static final int EVENT_RENDER = 3;
+    /** The arg is the published unread count. */
+    static final int EVENT_PUBLISH = 4;
+    static final int EVENT_PUBLISH_SKIPPED = 5;
+    /** Update asked for by DashClock or a content change, the arg is the update reason. */
+    static final int EVENT_UPDATE_REQUESTED = 6;
+    /** An account's query missed the deadline. */
+    static final int EVENT_QUERY_TIMEOUT = 7;
+    /** An account returned no label information. */
+    static final int EVENT_NO_LABELS = 8;
+    /** The installed Gmail doesn't let us read labels. */
+    static final int EVENT_NO_LABELS_ACCESS = 9;
+    /** An account's query failed, the arg is 1 for a permanent failure. */
+    static final int EVENT_QUERY_FAILED = 10;
+    /** An account wasn't queried, its query failed recently. */
+    static final int EVENT_QUERY_SKIPPED = 11;
+
+    private static final String[] EVENT_NAMES = {
+            "update",
+            "query",
+            "aggregate",
+            "render",
+            "publish",
+            "publish skipped",
+            "update requested",
+            "query timeout",
+            "no labels",
+            "no labels access",
+            "query failed",
+            "query skipped",
+    };
+
+    /** Duration of instant events. */
+    private static final long INSTANT = -1;
+
+    private static final TraceBuffer sInstance = new TraceBuffer();
+
+    private final int[] mEvents = new int[CAPACITY];
+    private final int[] mArgs = new int[CAPACITY];
+    private final long[] mStarts = new long[CAPACITY];
+    private final long[] mDurations = new long[CAPACITY];
+    private final long[] mThreads = new long[CAPACITY];
+    private final long[] mNamedThreadIds = new long[MAX_NAMED_THREADS];
+    private final String[] mThreadNames = new String[MAX_NAMED_THREADS];
+    private int mNamedThreadCount;
+
+    private int mNext;
+    private int mSize;
+
+    private volatile boolean mEnabled;
+
+    static TraceBuffer get() {
+        return sInstance;
+    }
+
+    private TraceBuffer() {}
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Turns recording on or off. Recorded events are kept either way.
+     */
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Records an event that started at startNanos and ends now.
+     *
+     * @param startNanos a {@link System#nanoTime()} value
+     */
+    void complete(int event, long startNanos, int arg) {
+        if (mEnabled) {
+            record(event, startNanos, System.nanoTime() - startNanos, arg);
+        }
+    }
+
+    /**
+     * Records an event without a duration.
+     */
+    void instant(int event, int arg) {
+        if (mEnabled) {
+            record(event, System.nanoTime(), INSTANT, arg);
+        }
+    }
+
+    private synchronized void record(int event, long start, long duration, int arg) {
+        final int i = mNext;
+        final Thread thread = Thread.currentThread();
+        final long threadId = thread.getId();
+        mEvents[i] = event;
+        mArgs[i] = arg;
+        mStarts[i] = start;
+        mDurations[i] = duration;
+        mThreads[i] = threadId;
+        nameThread(threadId, thread);
+        mNext = (i + 1) % CAPACITY;
+        if (mSize < CAPACITY) {
+            mSize++;
+        }
+    }
+
+    private void nameThread(long threadId, Thread thread) {
+        for (int i = 0; i < mNamedThreadCount; i++) {
+            if (mNamedThreadIds[i] == threadId) {
+                return;
+            }
+        }
+        if (mNamedThreadCount < MAX_NAMED_THREADS) {
+            mNamedThreadIds[mNamedThreadCount] = threadId;
+            mThreadNames[mNamedThreadCount] = thread.getName();
+            mNamedThreadCount++;
+        }
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized void clear() {
+        mNext = 0;
+        mSize = 0;
+    }
+
+    /**
+     * @return the recorded events, oldest first, as a Chrome trace JSON document
+     */
+    synchronized String toChromeJson() {
+        final int pid = Process.myPid();
+        StringBuilder sb = new StringBuilder(128 + mSize * 96);
+        sb.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (int t = 0; t < mNamedThreadCount; t++) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(pid)
+                    .append(",\"tid\":").append(mNamedThreadIds[t])
+                    .append(",\"args\":{\"name\":\"");
+            appendEscaped(sb, mThreadNames[t]);
+            sb.append("\"}}");
+        }
+
+        int i = (mNext - mSize + CAPACITY) % CAPACITY;
+        for (int n = 0; n < mSize; n++) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            boolean instant = mDurations[i] == INSTANT;
+            sb.append("{\"name\":\"").append(EVENT_NAMES[mEvents[i]])
+                    .append("\",\"ph\":\"").append(instant ? 'i' : 'X')
+                    .append("\",\"ts\":").append(mStarts[i] / 1000);
+            if (instant) {
+                sb.append(",\"s\":\"t\"");
+            } else {
+                sb.append(",\"dur\":").append(mDurations[i] / 1000);
+            }
+            sb.append(",\"pid\":").append(pid)
+                    .append(",\"tid\":").append(mThreads[i])
+                    .append(",\"args\":{\"arg\":").append(mArgs[i]).append("}}");
+            i = (i + 1) % CAPACITY;
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static void appendEscaped(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(' ');
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package gabilheri.com.inboxdashclock;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The user labels picked in {@link InboxExtension#PREF_TRACKED_LABELS}, indexed for matching
+ * canonical names during the row scan.
+ * <p>
+ * Names live in an open addressing hash table built once per settings change, so looking up a
+ * row's canonical name costs a hash and usually a single comparison no matter how many labels
+ * are tracked, and doesn't allocate. Immutable.
+ */
+final class TrackedLabels {
+
+    static final TrackedLabels EMPTY = new TrackedLabels(new String[0]);
+
+    /** Sorted canonical names, a label's index is its position here. */
+    private final String[] mNames;
+    private final char[][] mNameChars;
+    /** Index + 1 of the label stored in each bucket, 0 for an empty bucket. */
+    private final int[] mTable;
+    private final int mMask;
+
+    private TrackedLabels(String[] names) {
+        mNames = names;
+        mNameChars = new char[names.length][];
+        int capacity = 2;
+        while (capacity < names.length * 2) {
+            capacity <<= 1;
+        }
+        mTable = new int[capacity];
+        mMask = capacity - 1;
+        for (int i = 0; i < names.length; i++) {
+            char[] chars = names[i].toCharArray();
+            mNameChars[i] = chars;
+            int bucket = hash(chars, chars.length) & mMask;
+            while (mTable[bucket] != 0) {
+                bucket = (bucket + 1) & mMask;
+            }
+            mTable[bucket] = i + 1;
+        }
+    }
+
+    /**
+     * @param canonicalNames the canonical names to track, may be null
+     */
+    static TrackedLabels fromSet(Set<String> canonicalNames) {
+        if (canonicalNames == null || canonicalNames.isEmpty()) {
+            return EMPTY;
+        }
+        String[] names = canonicalNames.toArray(new String[canonicalNames.size()]);
+        Arrays.sort(names);
+        return new TrackedLabels(names);
+    }
+
+    int size() {
+        return mNames.length;
+    }
+
+    String getCanonicalName(int index) {
+        return mNames[index];
+    }
+
+    /**
+     * Looks up a canonical name held in a char buffer, e.g. the data of a
+     * {@link android.database.CharArrayBuffer}.
+     *
+     * @param length number of valid chars in name
+     * @return the label's index, -1 if it isn't tracked
+     */
+    int indexOf(char[] name, int length) {
+        if (mNames.length == 0) {
+            return -1;
+        }
+        int bucket = hash(name, length) & mMask;
+        int entry;
+        while ((entry = mTable[bucket]) != 0) {
+            char[] candidate = mNameChars[entry - 1];
+            if (candidate.length == length && regionEquals(candidate, name, length)) {
+                return entry - 1;
+            }
+            bucket = (bucket + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private static int hash(char[] chars, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + chars[i];
+        }
+        // Spread the high bits, the table is indexed by the low ones.
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean regionEquals(char[] a, char[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TrackedLabels && Arrays.equals(mNames, ((TrackedLabels) o).mNames);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mNames);
+    }
+}
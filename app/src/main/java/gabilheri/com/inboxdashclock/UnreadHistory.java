@@ -0,0 +1,253 @@
+package gabilheri.com.inboxdashclock;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Unread counts over time, behind the trend sparkline of the settings and the "new in the last
+ * hour" line of the body. Shared by the extension and the settings screen.
+ * <p>
+ * Each aggregated refresh whose counts differ from the previous one is appended as a fixed
+ * size record, the wall clock time followed by the total and the count of each slot, to a
+ * circular file mapped in memory. Appending is a few writes to the mapping, the kernel writes
+ * the pages back on its own, and neither appending nor reading allocates. Once full, the
+ * oldest records are overwritten.
+ */
+final class UnreadHistory {
+    private static final String TAG = UnreadHistory.class.getSimpleName();
+
+    private static final String FILE_NAME = "unread.history";
+    private static final int MAGIC = 0x49484953;
+    private static final int VERSION = 1;
+
+    /** A few days at one change every few minutes. */
+    static final int CAPACITY = 2048;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_NEXT = 12;
+    private static final int HEADER_SIZE_FIELD = 16;
+
+    /** Time, total and the count of each slot. */
+    private static final int RECORD_SIZE = 8 + 4 + 4 * LabelAggregator.SLOT_COUNT;
+    private static final int RECORD_TIME = 0;
+    private static final int RECORD_TOTAL = 8;
+    private static final int RECORD_SLOTS = 12;
+
+    private static final char[] SPARK_LEVELS = {
+            '\u2581', '\u2582', '\u2583', '\u2584', '\u2585', '\u2586', '\u2587', '\u2588'
+    };
+
+    private static UnreadHistory sInstance;
+
+    private final File mFile;
+
+    /** Null until opened, or if the file couldn't be mapped. */
+    private MappedByteBuffer mBuffer;
+    private boolean mOpened;
+    private int mNext;
+    private int mSize;
+
+    private UnreadHistory(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    static synchronized UnreadHistory get(Context context) {
+        if (sInstance == null) {
+            sInstance = new UnreadHistory(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Maps the file, creating it if needed. Done on first use, may be called ahead of time
+     * off the main thread.
+     */
+    synchronized void open() {
+        if (mOpened) {
+            return;
+        }
+        mOpened = true;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            long length = HEADER_SIZE + (long) CAPACITY * RECORD_SIZE;
+            file.setLength(length);
+            // The mapping stays valid once the file is closed.
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't map unread history", e);
+            return;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Nothing was written through it
+                }
+            }
+        }
+
+        MappedByteBuffer buffer = mBuffer;
+        mNext = buffer.getInt(HEADER_NEXT);
+        mSize = buffer.getInt(HEADER_SIZE_FIELD);
+        if (buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) != VERSION
+                || buffer.getInt(HEADER_CAPACITY) != CAPACITY
+                || mNext < 0 || mNext >= CAPACITY || mSize < 0 || mSize > CAPACITY) {
+            // New, or written by another version
+            mNext = 0;
+            mSize = 0;
+            buffer.putInt(HEADER_MAGIC, MAGIC);
+            buffer.putInt(HEADER_VERSION, VERSION);
+            buffer.putInt(HEADER_CAPACITY, CAPACITY);
+            writeHeader();
+        }
+    }
+
+    /**
+     * Appends the counts of a refresh, unless they're the same as the last ones.
+     *
+     * @param time wall clock time of the refresh
+     * @param slotUnread unread count of each slot, indexed like {@link LabelAggregator#SLOT_COUNT}
+     */
+    synchronized void append(long time, int total, int[] slotUnread) {
+        open();
+        MappedByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            return;
+        }
+        if (mSize > 0 && sameAsLast(total, slotUnread)) {
+            return;
+        }
+        int offset = offsetOf(mNext);
+        buffer.putLong(offset + RECORD_TIME, time);
+        buffer.putInt(offset + RECORD_TOTAL, total);
+        for (int slot = 0; slot < LabelAggregator.SLOT_COUNT; slot++) {
+            buffer.putInt(offset + RECORD_SLOTS + 4 * slot, slotUnread[slot]);
+        }
+        mNext = (mNext + 1) % CAPACITY;
+        if (mSize < CAPACITY) {
+            mSize++;
+        }
+        writeHeader();
+    }
+
+    private boolean sameAsLast(int total, int[] slotUnread) {
+        int offset = offsetOf((mNext - 1 + CAPACITY) % CAPACITY);
+        if (mBuffer.getInt(offset + RECORD_TOTAL) != total) {
+            return false;
+        }
+        for (int slot = 0; slot < LabelAggregator.SLOT_COUNT; slot++) {
+            if (mBuffer.getInt(offset + RECORD_SLOTS + 4 * slot) != slotUnread[slot]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeHeader() {
+        mBuffer.putInt(HEADER_NEXT, mNext);
+        mBuffer.putInt(HEADER_SIZE_FIELD, mSize);
+    }
+
+    private static int offsetOf(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    /**
+     * @return the offset of the index-th record, oldest first
+     */
+    private int offsetOfIndex(int index) {
+        return offsetOf((mNext - mSize + index + CAPACITY) % CAPACITY);
+    }
+
+    /**
+     * @return the number of records
+     */
+    synchronized int size() {
+        open();
+        return mBuffer != null ? mSize : 0;
+    }
+
+    /**
+     * @param index 0 for the oldest record, below {@link #size()}
+     */
+    synchronized long getTime(int index) {
+        return mBuffer.getLong(offsetOfIndex(index) + RECORD_TIME);
+    }
+
+    /**
+     * @param index 0 for the oldest record, below {@link #size()}
+     */
+    synchronized int getTotal(int index) {
+        return mBuffer.getInt(offsetOfIndex(index) + RECORD_TOTAL);
+    }
+
+    /**
+     * @param index 0 for the oldest record, below {@link #size()}
+     */
+    synchronized int getSlotUnread(int index, int slot) {
+        return mBuffer.getInt(offsetOfIndex(index) + RECORD_SLOTS + 4 * slot);
+    }
+
+    /**
+     * @return the total unread count as of the given wall clock time, -1 if the history
+     * doesn't go back that far
+     */
+    synchronized int getTotalAt(long time) {
+        open();
+        if (mBuffer == null) {
+            return -1;
+        }
+        for (int index = mSize - 1; index >= 0; index--) {
+            int offset = offsetOfIndex(index);
+            if (mBuffer.getLong(offset + RECORD_TIME) <= time) {
+                return mBuffer.getInt(offset + RECORD_TOTAL);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Renders the total unread count at the end of each bucket as a line of block characters,
+     * scaled from the lowest to the highest count. Buckets older than the history are blank.
+     *
+     * @param now wall clock time the last bucket ends at
+     * @return the sparkline, null if there's no history yet
+     */
+    synchronized String sparkline(long now, int bucketCount, long bucketMs) {
+        if (size() == 0) {
+            return null;
+        }
+        int[] totals = new int[bucketCount];
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            int total = getTotalAt(now - (bucketCount - 1 - i) * bucketMs);
+            totals[i] = total;
+            if (total >= 0) {
+                min = Math.min(min, total);
+                max = Math.max(max, total);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(bucketCount);
+        for (int total : totals) {
+            if (total < 0) {
+                sb.append(' ');
+            } else {
+                int level = max > min ? (total - min) * (SPARK_LEVELS.length - 1) / (max - min) : 0;
+                sb.append(SPARK_LEVELS[level]);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,177 @@
+package gabilheri.com.inboxdashclock;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.google.android.apps.dashclock.api.DashClockExtension;
+
+/**
+ * Coalesces bursts of content change notifications into a single update.
+ * <p>
+ * A Gmail sync usually touches several labels at once and every one of them triggers its own
+ * notification. Content changes are delayed by a short window so the whole burst ends up in
+ * one update, and updates caused by content changes are never closer to each other than a
+ * minimum interval. Every other update reason, e.g. the user changing the settings, runs
+ * right away. While deferred, e.g. with the screen off, content changes are only remembered
+ * and a single update is scheduled once the deferral ends.
+ * <p>
+ * Must be used from the thread of the {@link Handler} it's given.
+ */
+final class UpdateScheduler {
+
+    interface Callback {
+        /**
+         * Called on the scheduler's thread when a delayed update is due.
+         */
+        void onScheduledUpdate(int reason);
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final long mCoalesceWindowMs;
+    private final long mMinIntervalMs;
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPending = false;
+            mCallback.onScheduledUpdate(DashClockExtension.UPDATE_REASON_CONTENT_CHANGED);
+        }
+    };
+
+    private boolean mPending;
+    private long mPendingTime;
+    private boolean mDeferred;
+    /** A content change came in while deferred. */
+    private boolean mMissedUpdate;
+    private long mLastUpdateTime;
+    private boolean mUpdatedOnce;
+    private int mRequestCount;
+    private int mUpdateCount;
+
+    /**
+     * @param coalesceWindowMs how long content changes are held back waiting for more of them
+     * @param minIntervalMs minimum time between two updates caused by content changes
+     */
+    UpdateScheduler(Handler handler, Callback callback, long coalesceWindowMs, long minIntervalMs) {
+        mHandler = handler;
+        mCallback = callback;
+        mCoalesceWindowMs = coalesceWindowMs;
+        mMinIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * Called for every update request.
+     *
+     * @return true if the update must run now, false if it was merged into a pending one
+     */
+    boolean requestUpdate(int reason) {
+        mRequestCount++;
+        if (reason != DashClockExtension.UPDATE_REASON_CONTENT_CHANGED) {
+            cancel();
+            mMissedUpdate = false;
+            return true;
+        }
+        if (mDeferred) {
+            mMissedUpdate = true;
+            return false;
+        }
+        if (mPending) {
+            return false;
+        }
+
+        long updateTime = SystemClock.uptimeMillis() + mCoalesceWindowMs;
+        if (mUpdatedOnce) {
+            updateTime = Math.max(updateTime, mLastUpdateTime + mMinIntervalMs);
+        }
+        schedule(updateTime);
+        return false;
+    }
+
+    /**
+     * Makes sure a content update runs no later than the given time, e.g. when an account
+     * whose refresh was held back becomes due. Still keeps the minimum interval after the
+     * last update.
+     *
+     * @param uptimeMillis in the {@link SystemClock#uptimeMillis()} time base
+     */
+    void requestUpdateAt(long uptimeMillis) {
+        if (mDeferred) {
+            mMissedUpdate = true;
+            return;
+        }
+        if (mUpdatedOnce) {
+            uptimeMillis = Math.max(uptimeMillis, mLastUpdateTime + mMinIntervalMs);
+        }
+        if (mPending) {
+            if (mPendingTime <= uptimeMillis) {
+                return;
+            }
+            mHandler.removeCallbacks(mUpdateRunnable);
+        }
+        schedule(uptimeMillis);
+    }
+
+    /**
+     * While deferred, content changes don't schedule updates. When the deferral ends and a
+     * change came in meanwhile, a single update is scheduled.
+     */
+    void setDeferred(boolean deferred) {
+        if (mDeferred == deferred) {
+            return;
+        }
+        mDeferred = deferred;
+        if (deferred) {
+            if (mPending) {
+                cancel();
+                mMissedUpdate = true;
+            }
+        } else if (mMissedUpdate) {
+            mMissedUpdate = false;
+            schedule(SystemClock.uptimeMillis() + mCoalesceWindowMs);
+        }
+    }
+
+    boolean isDeferred() {
+        return mDeferred;
+    }
+
+    private void schedule(long uptimeMillis) {
+        mPending = true;
+        mPendingTime = uptimeMillis;
+        mHandler.postAtTime(mUpdateRunnable, uptimeMillis);
+    }
+
+    /**
+     * Must be called whenever an update ran, scheduled or not.
+     */
+    void onUpdated() {
+        mUpdateCount++;
+        mUpdatedOnce = true;
+        mLastUpdateTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Drops the pending update, if any.
+     */
+    void cancel() {
+        if (mPending) {
+            mHandler.removeCallbacks(mUpdateRunnable);
+            mPending = false;
+        }
+    }
+
+    /**
+     * @return the number of update requests received
+     */
+    int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return the number of updates that actually ran
+     */
+    int getUpdateCount() {
+        return mUpdateCount;
+    }
+}
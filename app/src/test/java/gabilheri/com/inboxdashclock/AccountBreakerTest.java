@@ -0,0 +1,50 @@
+package gabilheri.com.inboxdashclock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Backoffs and retry scheduling of {@link AccountBreaker}, on a made-up clock.
+ */
+public class AccountBreakerTest {
+
+    private static final String ONE = "one@gmail.com";
+    private static final String TWO = "two@gmail.com";
+
+    @Test
+    public void transientFailuresBackOffExponentially() {
+        AccountBreaker breaker = new AccountBreaker();
+        long now = 1000;
+        assertEquals(AccountBreaker.TRANSIENT_BACKOFF_MS, breaker.onFailure(ONE, false, now));
+        assertFalse(breaker.allowQuery(ONE, now + AccountBreaker.TRANSIENT_BACKOFF_MS - 1));
+        assertTrue(breaker.allowQuery(ONE, now + AccountBreaker.TRANSIENT_BACKOFF_MS));
+        assertEquals(2 * AccountBreaker.TRANSIENT_BACKOFF_MS, breaker.onFailure(ONE, false, now));
+        for (int i = 0; i < 20; i++) {
+            breaker.onFailure(ONE, false, now);
+        }
+        assertEquals(AccountBreaker.MAX_TRANSIENT_BACKOFF_MS, breaker.onFailure(ONE, false, now));
+
+        breaker.onSuccess(ONE);
+        assertFalse(breaker.hasFailed(ONE));
+        assertTrue(breaker.allowQuery(ONE, now));
+    }
+
+    @Test
+    public void retryTimeOnlyCoversSelectedAccountsStillHeldBack() {
+        AccountBreaker breaker = new AccountBreaker();
+        breaker.onFailure(ONE, false, 0);
+        breaker.onFailure(TWO, true, 0);
+        assertEquals(AccountBreaker.TRANSIENT_BACKOFF_MS, breaker.getNextRetryTime(0));
+
+        // Backoffs that already ran out don't schedule anything
+        assertEquals(AccountBreaker.PERMANENT_BACKOFF_MS,
+                breaker.getNextRetryTime(AccountBreaker.TRANSIENT_BACKOFF_MS));
+
+        breaker.retain(new String[]{ONE});
+        assertFalse(breaker.hasFailed(TWO));
+        assertEquals(Long.MAX_VALUE, breaker.getNextRetryTime(AccountBreaker.TRANSIENT_BACKOFF_MS));
+    }
+}
@@ -0,0 +1,207 @@
+package gabilheri.com.inboxdashclock;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for the Gmail labels provider described by {@link InboxContract}.
+ * <p>
+ * Serves the same {@link InboxContract.Labels} schema for a configurable number of accounts
+ * and labels, and can inject latency or the failures seen in the wild.
+ */
+public class FakeLabelsProvider extends ContentProvider {
+
+    enum Failure {
+        NONE,
+        /** "SQLiteException: no such table: labels" */
+        NO_SUCH_TABLE,
+        /** "Permission Denial: opening provider ..." */
+        PERMISSION_DENIAL,
+    }
+
+    /** Labels every account starts with, followed by user labels. */
+    static final String[][] SYSTEM_LABELS = {
+            {InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX, "Inbox"},
+            {InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PRIORITY_INBOX, "Priority Inbox"},
+            {InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PERSONAL, "Primary"},
+            {InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_UPDATES, "Updates"},
+            {InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_SOCIAL, "Social"},
+            {InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_GROUP, "Forums"},
+            {InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PROMO, "Promotions"},
+            {InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_STARRED, "Starred"},
+            {InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_SENT, "Sent"},
+    };
+
+    /** Index of the first sectioned inbox label in {@link #SYSTEM_LABELS}. */
+    static final int FIRST_SECTION = 2;
+    static final int SECTION_COUNT = 5;
+
+    private static final String[] ALL_COLUMNS = {
+            InboxContract.Labels.CANONICAL_NAME,
+            InboxContract.Labels.NAME,
+            InboxContract.Labels.NUM_CONVERSATIONS,
+            InboxContract.Labels.NUM_UNREAD_CONVERSATIONS,
+            InboxContract.Labels.TEXT_COLOR,
+            InboxContract.Labels.BACKGROUND_COLOR,
+            InboxContract.Labels.URI,
+    };
+
+    private final String[] mAccounts;
+    private final int mLabelsPerAccount;
+    private final HashMap<String, int[]> mUnread = new HashMap<>();
+
+    private volatile long mLatencyMs;
+    private volatile Failure mFailure = Failure.NONE;
+    private final AtomicInteger mQueryCount = new AtomicInteger();
+
+    /**
+     * @param labelsPerAccount total labels per account, at least {@link #SYSTEM_LABELS}
+     */
+    public FakeLabelsProvider(String[] accounts, int labelsPerAccount) {
+        mAccounts = accounts;
+        mLabelsPerAccount = Math.max(labelsPerAccount, SYSTEM_LABELS.length);
+        for (String account : accounts) {
+            mUnread.put(account, new int[mLabelsPerAccount]);
+        }
+    }
+
+    static Uri labelUri(String account, int label) {
+        return Uri.parse(InboxContract.BASE_URI_STRING + "/" + account + InboxContract.LABEL_PARAM + label);
+    }
+
+    String[] getAccounts() {
+        return mAccounts;
+    }
+
+    int getLabelsPerAccount() {
+        return mLabelsPerAccount;
+    }
+
+    /**
+     * Delay added to every query, on the querying thread.
+     */
+    void setLatency(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    void setFailure(Failure failure) {
+        mFailure = failure;
+    }
+
+    /**
+     * @return the number of queries that asked for unread counts, as opposed to e.g. label
+     * catalog refreshes
+     */
+    int getQueryCount() {
+        return mQueryCount.get();
+    }
+
+    synchronized void setUnread(String account, int label, int unread) {
+        mUnread.get(account)[label] = unread;
+    }
+
+    synchronized int getUnread(String account, int label) {
+        return mUnread.get(account)[label];
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        if (projection == null
+                || Arrays.asList(projection).contains(InboxContract.Labels.NUM_UNREAD_CONVERSATIONS)) {
+            mQueryCount.incrementAndGet();
+        }
+        if (mLatencyMs > 0) {
+            try {
+                Thread.sleep(mLatencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        switch (mFailure) {
+            case NO_SUCH_TABLE:
+                throw new SQLiteException("no such table: labels");
+            case PERMISSION_DENIAL:
+                throw new SecurityException("Permission Denial: opening provider " + InboxContract.AUTHORITY);
+        }
+
+        // content://com.google.android.gm/<account>/labels
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !"labels".equals(segments.get(1))) {
+            return null;
+        }
+        String account = segments.get(0);
+
+        String[] columns = projection != null ? projection : ALL_COLUMNS;
+        MatrixCursor cursor = new MatrixCursor(columns, mLabelsPerAccount);
+        synchronized (this) {
+            int[] unread = mUnread.get(account);
+            if (unread == null) {
+                return cursor;
+            }
+            Object[] row = new Object[columns.length];
+            for (int label = 0; label < mLabelsPerAccount; label++) {
+                for (int c = 0; c < columns.length; c++) {
+                    row[c] = value(columns[c], account, label, unread[label]);
+                }
+                cursor.addRow(row);
+            }
+        }
+        return cursor;
+    }
+
+    private static Object value(String column, String account, int label, int unread) {
+        switch (column) {
+            case InboxContract.Labels.CANONICAL_NAME:
+                return label < SYSTEM_LABELS.length ? SYSTEM_LABELS[label][0] : "Label " + label;
+            case InboxContract.Labels.NAME:
+                return label < SYSTEM_LABELS.length ? SYSTEM_LABELS[label][1] : "Label " + label;
+            case InboxContract.Labels.NUM_CONVERSATIONS:
+                return unread * 3;
+            case InboxContract.Labels.NUM_UNREAD_CONVERSATIONS:
+                return unread;
+            case InboxContract.Labels.TEXT_COLOR:
+                return 0xff000000;
+            case InboxContract.Labels.BACKGROUND_COLOR:
+                return 0xffffffff;
+            case InboxContract.Labels.URI:
+                return labelUri(account, label).toString();
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return InboxContract.Labels.CONTENT_TYPE;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,107 @@
+package gabilheri.com.inboxdashclock;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Aggregates hand-made label rows, without Gmail or Android.
+ */
+public class LabelAggregatorTest {
+
+    private static final String INBOX = InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX;
+    private static final String PRIORITY_INBOX =
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PRIORITY_INBOX;
+    private static final String PERSONAL = InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PERSONAL;
+    private static final String SOCIAL = InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_SOCIAL;
+    private static final String PROMO = InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PROMO;
+
+    @Test
+    public void mapsCanonicalNamesToSlots() {
+        for (int slot = 0; slot < LabelAggregator.SLOT_COUNT; slot++) {
+            String name = LabelAggregator.SLOT_CANONICAL_NAMES[slot];
+            assertEquals(slot, LabelAggregator.slotFor(name));
+            assertEquals(slot, LabelAggregator.slotFor(name.toCharArray(), name.length()));
+        }
+        assertEquals(LabelAggregator.SLOT_INBOX, LabelAggregator.slotFor(INBOX));
+        assertEquals(LabelAggregator.SLOT_INBOX, LabelAggregator.slotFor(PRIORITY_INBOX));
+        assertEquals(LabelAggregator.SLOT_OTHER_SECTION, LabelAggregator.slotFor("^sq_ig_i_travel"));
+        assertEquals(LabelAggregator.SLOT_NONE, LabelAggregator.slotFor("Receipts"));
+        assertEquals(LabelAggregator.SLOT_NONE, LabelAggregator.slotFor((String) null));
+
+        // Only the valid part of the buffer counts
+        char[] buffer = (INBOX + "junk").toCharArray();
+        assertEquals(LabelAggregator.SLOT_INBOX, LabelAggregator.slotFor(buffer, INBOX.length()));
+    }
+
+    @Test
+    public void hiddenSlotsAreLeftOutWhileAccumulating() {
+        int mask = LabelAggregator.hiddenMask(new HashSet<>(Arrays.asList(
+                InboxExtension.LABEL_PROMOS, InboxExtension.LABEL_UNREAD)));
+        assertEquals(1 << LabelAggregator.SLOT_PROMOS, mask);
+
+        LabelAggregator.AccountCounts counts = new LabelAggregator.AccountCounts();
+        counts.reset("one@gmail.com", mask);
+        counts.addRow(PERSONAL, "Primary", 2);
+        counts.addRow(SOCIAL, "Social", 3);
+        counts.addRow(PROMO, "Promotions", 40);
+
+        assertFalse(counts.isVisible(LabelAggregator.SLOT_PROMOS));
+        assertEquals(0, counts.unread[LabelAggregator.SLOT_PROMOS]);
+        // Still named, the settings list hidden sections too
+        assertEquals("Promotions", counts.labelNames[LabelAggregator.SLOT_PROMOS]);
+        assertEquals(5, counts.getUnread());
+    }
+
+    @Test
+    public void priorityInboxAndInboxCountOnce() {
+        LabelAggregator.AccountCounts counts = new LabelAggregator.AccountCounts();
+        counts.reset("one@gmail.com", 0);
+        counts.addRow(INBOX, "Inbox", 7);
+        counts.addRow(PRIORITY_INBOX, "Priority Inbox", 4);
+        assertEquals(7, counts.getUnread());
+
+        // With sections the inbox rows don't count at all
+        counts.addRow(PERSONAL, "Primary", 2);
+        assertTrue(counts.hasSections);
+        assertEquals(2, counts.getUnread());
+    }
+
+    @Test
+    public void totalsAddUpAcrossAccounts() {
+        LabelAggregator aggregator = new LabelAggregator();
+        aggregator.begin(0);
+
+        LabelAggregator.AccountCounts one = aggregator.beginAccount("one@gmail.com");
+        one.addRow(PERSONAL, "Primary", 2);
+        one.addRow(SOCIAL, "Social", 1);
+        aggregator.endAccount(one);
+
+        LabelAggregator.AccountCounts two = aggregator.beginAccount("two@gmail.com");
+        two.addRow(PERSONAL, "Primary", 5);
+        two.addRow("^sq_ig_i_travel", "Travel", 3);
+        aggregator.endAccount(two);
+
+        // Dropped, nothing unread
+        LabelAggregator.AccountCounts three = aggregator.beginAccount("three@gmail.com");
+        three.addRow(INBOX, "Inbox", 0);
+        aggregator.endAccount(three);
+
+        assertEquals(11, aggregator.getTotalUnread());
+        assertEquals(2, aggregator.getAccountCount());
+        assertEquals(7, aggregator.getLabelUnread(LabelAggregator.SLOT_PERSONAL));
+        assertEquals(1, aggregator.getLabelUnread(LabelAggregator.SLOT_SOCIAL));
+        assertEquals("Primary", aggregator.getLabelName(LabelAggregator.SLOT_PERSONAL));
+        assertEquals("two@gmail.com", aggregator.getAccount(1).account);
+
+        // Starting over forgets the previous accounts
+        aggregator.begin(0);
+        assertEquals(0, aggregator.getTotalUnread());
+        assertEquals(0, aggregator.getAccountCount());
+    }
+}
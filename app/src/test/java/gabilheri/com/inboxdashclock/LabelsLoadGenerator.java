@@ -0,0 +1,65 @@
+package gabilheri.com.inboxdashclock;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Random;
+
+/**
+ * Changes unread counts in a {@link FakeLabelsProvider} and fires the matching change
+ * notifications at a fixed rate, advancing Robolectric's clock between them.
+ */
+class LabelsLoadGenerator {
+
+    interface Listener {
+        /**
+         * Called right before each change notification is sent, observers may react to it
+         * synchronously.
+         */
+        void onNotify(Uri uri);
+    }
+
+    private final FakeLabelsProvider mProvider;
+    private final ContentResolver mResolver;
+    private final Random mRandom;
+
+    LabelsLoadGenerator(FakeLabelsProvider provider, ContentResolver resolver, long seed) {
+        mProvider = provider;
+        mResolver = resolver;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Bumps the unread count of a random sectioned label of a random account and notifies
+     * its URI.
+     */
+    Uri fire(Listener listener) {
+        String[] accounts = mProvider.getAccounts();
+        String account = accounts[mRandom.nextInt(accounts.length)];
+        int label = FakeLabelsProvider.FIRST_SECTION + mRandom.nextInt(FakeLabelsProvider.SECTION_COUNT);
+        mProvider.setUnread(account, label, mProvider.getUnread(account, label) + 1);
+
+        Uri uri = FakeLabelsProvider.labelUri(account, label);
+        if (listener != null) {
+            listener.onNotify(uri);
+        }
+        mResolver.notifyChange(uri, null);
+        return uri;
+    }
+
+    /**
+     * Fires notifications for the given duration.
+     *
+     * @param ratePerSecond notifications per second of (Robolectric) time
+     * @param durationMs how long to keep going
+     */
+    void run(int ratePerSecond, long durationMs, Listener listener) {
+        long intervalMs = 1000 / ratePerSecond;
+        for (long elapsed = 0; elapsed < durationMs; elapsed += intervalMs) {
+            fire(listener);
+            ShadowLooper.idleMainLooper(intervalMs);
+        }
+    }
+}
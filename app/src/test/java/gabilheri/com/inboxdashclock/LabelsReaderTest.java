@@ -0,0 +1,165 @@
+package gabilheri.com.inboxdashclock;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Counts label rows off-device through {@link MemoryLabelSource} and {@link RecordedLabelSource}.
+ */
+public class LabelsReaderTest {
+
+    private static final String ACCOUNT = "one@gmail.com";
+    private static final String[] ACCOUNTS = {ACCOUNT, "unknown@gmail.com"};
+
+    private static final int FEW_ROWS = 10;
+    private static final int MANY_ROWS = 10000;
+
+    private static MemoryLabelSource source() {
+        return new MemoryLabelSource()
+                .addLabel(ACCOUNT, InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX,
+                        "Inbox", "content://inbox", 9)
+                .addLabel(ACCOUNT, InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PERSONAL,
+                        "Primary", "content://personal", 3)
+                .addLabel(ACCOUNT, InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PROMO,
+                        "Promotions", "content://promo", 4)
+                .addLabel(ACCOUNT, "Receipts", "Receipts", "content://receipts", 2);
+    }
+
+    private static LabelAggregator.AccountCounts read(LabelSource source, int hiddenMask,
+                                                      TrackedLabels tracked) throws Exception {
+        LabelSource.Batch batch = source.fetch(ACCOUNTS, true, true);
+        try {
+            assertNull(batch.open(1));
+            LabelSource.Rows rows = batch.open(0);
+            LabelAggregator.AccountCounts counts = new LabelAggregator.AccountCounts();
+            counts.reset(ACCOUNT, hiddenMask, tracked);
+            try {
+                assertEquals(4, LabelsReader.read(rows, counts, null, true));
+            } finally {
+                rows.close();
+            }
+            return counts;
+        } finally {
+            batch.close();
+        }
+    }
+
+    @Test
+    public void countsVisibleSectionsAndTrackedLabels() throws Exception {
+        int hidePromos = 1 << LabelAggregator.SLOT_PROMOS;
+        LabelAggregator.AccountCounts counts = read(source(), hidePromos,
+                TrackedLabels.fromSet(Collections.singleton("Receipts")));
+
+        assertEquals(3, counts.getUnread());
+        assertEquals("Primary", counts.labelNames[LabelAggregator.SLOT_PERSONAL]);
+        assertEquals(2, counts.trackedUnread[0]);
+        assertEquals("content://receipts", counts.trackedUris[0]);
+    }
+
+    @Test
+    public void recordingReplaysTheSameCounts() throws Exception {
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        RecordedLabelSource.record(source(), ACCOUNTS, recording);
+        RecordedLabelSource replay = RecordedLabelSource.read(new ByteArrayInputStream(recording.toByteArray()));
+
+        assertEquals(ACCOUNTS.length, replay.getAccounts().length);
+        assertEquals(read(source(), 0, TrackedLabels.EMPTY).getUnread(),
+                read(replay, 0, TrackedLabels.EMPTY).getUnread());
+    }
+
+    @Test
+    public void freshUrisReplaceThePreviousOnes() throws Exception {
+        TrackedLabels tracked = TrackedLabels.fromSet(Collections.singleton("Receipts"));
+        LabelAggregator.AccountCounts previous = read(source(), 0, tracked);
+        MemoryLabelSource moved = new MemoryLabelSource()
+                .addLabel(ACCOUNT, InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PERSONAL,
+                        "Primary", "content://personal/2", 3)
+                .addLabel(ACCOUNT, "Receipts", "Receipts", "content://receipts/2", 2);
+
+        LabelAggregator.AccountCounts counts = new LabelAggregator.AccountCounts();
+        counts.reset(ACCOUNT, 0, tracked);
+        LabelSource.Rows rows = moved.fetch(ACCOUNTS, true, true).open(0);
+        LabelsReader.read(rows, counts, previous, true);
+        assertEquals("content://personal/2", counts.labelUris[LabelAggregator.SLOT_PERSONAL]);
+        assertEquals("content://receipts/2", counts.trackedUris[0]);
+
+        // Without URIs in the rows the previous ones are kept
+        counts.reset(ACCOUNT, 0, tracked);
+        rows = moved.fetch(ACCOUNTS, true, false).open(0);
+        LabelsReader.read(rows, counts, previous, true);
+        assertEquals("content://personal", counts.labelUris[LabelAggregator.SLOT_PERSONAL]);
+        assertEquals("content://receipts", counts.trackedUris[0]);
+    }
+
+    @Test
+    public void untrackedAndHiddenRowsDontAllocate() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue("Needs a JVM that tracks allocations per thread",
+                threads instanceof com.sun.management.ThreadMXBean
+                        && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        long few = bytesAllocatedReading(allocations, rows(FEW_ROWS));
+        long many = bytesAllocatedReading(allocations, rows(MANY_ROWS));
+        assertTrue("Reading " + MANY_ROWS + " rows allocated " + many + " bytes, " + FEW_ROWS
+                + " rows " + few + " bytes", many - few < MANY_ROWS);
+    }
+
+    /**
+     * A visible section and a tracked label, followed by untracked user labels and rows of the
+     * hidden promotions section.
+     */
+    private static MemoryLabelSource rows(int count) {
+        MemoryLabelSource source = new MemoryLabelSource()
+                .addLabel(ACCOUNT, InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PERSONAL,
+                        "Primary", "content://personal", 3)
+                .addLabel(ACCOUNT, "Receipts", "Receipts", "content://receipts", 2);
+        for (int i = 0; i < count; i++) {
+            if (i % 2 == 0) {
+                source.addLabel(ACCOUNT, "Label " + i, "Label " + i, "content://label/" + i, 1);
+            } else {
+                source.addLabel(ACCOUNT, InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PROMO,
+                        "Promotions", "content://promo", 1);
+            }
+        }
+        return source;
+    }
+
+    /**
+     * @return the fewest bytes this thread allocated in {@link LabelsReader#read} over a few runs,
+     * the first ones also load and compile classes
+     */
+    private static long bytesAllocatedReading(com.sun.management.ThreadMXBean allocations,
+                                              MemoryLabelSource source) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        TrackedLabels tracked = TrackedLabels.fromSet(Collections.singleton("Receipts"));
+        int hidePromos = 1 << LabelAggregator.SLOT_PROMOS;
+        LabelAggregator.AccountCounts counts = new LabelAggregator.AccountCounts();
+        long fewest = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            LabelSource.Batch batch = source.fetch(ACCOUNTS, true, true);
+            LabelSource.Rows rows = batch.open(0);
+            counts.reset(ACCOUNT, hidePromos, tracked);
+
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            LabelsReader.read(rows, counts, null, true);
+            long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+            rows.close();
+            batch.close();
+            fewest = Math.min(fewest, allocated);
+        }
+        return fewest;
+    }
+}
@@ -0,0 +1,240 @@
+package gabilheri.com.inboxdashclock;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.app.Application;
+import android.content.pm.PackageInfo;
+import android.content.pm.PermissionInfo;
+import android.content.pm.ProviderInfo;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.google.android.apps.dashclock.api.DashClockExtension;
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Drives {@link InboxExtension} with a {@link FakeLabelsProvider} and measures how long it takes
+ * from a label change notification to the matching publish.
+ * <p>
+ * Latency is the Robolectric clock delta, which covers the update scheduling, plus the real time
+ * spent querying and rendering.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, application = Application.class)
+public class RefreshLatencyTest {
+
+    private static final String[] ACCOUNTS = {"one@gmail.com", "two@gmail.com", "three@gmail.com"};
+    private static final int LABELS_PER_ACCOUNT = 40;
+    private static final long PROVIDER_LATENCY_MS = 5;
+
+    private static final int NOTIFICATIONS_PER_SECOND = 20;
+    private static final long LOAD_DURATION_MS = 60 * 1000;
+
+    /** Coalescing window plus minimum interval of the scheduler, with some slack. */
+    private static final long MAX_LATENCY_MS = 18 * 1000;
+
+    /**
+     * Under sustained load the accounts keep changing and {@link RefreshPolicy} backs them off,
+     * up to its longest interval.
+     */
+    private static final long MAX_LOADED_LATENCY_MS =
+            InboxExtension.ACCOUNT_MAX_REFRESH_INTERVAL_MS + MAX_LATENCY_MS;
+
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    private FakeLabelsProvider mProvider;
+    private TestExtension mExtension;
+
+    /**
+     * Stands in for the DashClock host and records what the extension publishes and asks it
+     * to watch.
+     */
+    public static class TestExtension extends InboxExtension {
+
+        final List<ExtensionData> published = new ArrayList<>();
+        String[] watchedUris = new String[0];
+        final RollingHistogram latency = new RollingHistogram(4096);
+
+        /** Uptime and nano time of the notifications not published yet. */
+        private final List<long[]> mPending = new ArrayList<>();
+
+        void onNotify() {
+            mPending.add(new long[]{SystemClock.uptimeMillis(), System.nanoTime()});
+        }
+
+        int getPendingCount() {
+            return mPending.size();
+        }
+
+        @Override
+        void watchContentUris(String[] uris) {
+            // The extension's own observers already deliver the changes in-process.
+            watchedUris = uris;
+        }
+
+        @Override
+        void publish(ExtensionData data) {
+            long uptime = SystemClock.uptimeMillis();
+            long nanos = System.nanoTime();
+            for (long[] notified : mPending) {
+                latency.record(uptime - notified[0] + (nanos - notified[1]) / 1000000);
+            }
+            mPending.clear();
+            published.add(data);
+        }
+
+        ExtensionData getLastPublished() {
+            return published.isEmpty() ? null : published.get(published.size() - 1);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Application app = RuntimeEnvironment.application;
+
+        mProvider = new FakeLabelsProvider(ACCOUNTS, LABELS_PER_ACCOUNT);
+        mProvider.setLatency(PROVIDER_LATENCY_MS);
+        for (String account : ACCOUNTS) {
+            mProvider.setUnread(account, FakeLabelsProvider.FIRST_SECTION, 1);
+        }
+        ShadowContentResolver.registerProvider(InboxContract.AUTHORITY, mProvider);
+        RuntimeEnvironment.getRobolectricPackageManager().addPackage(createGmailPackage());
+        for (String account : ACCOUNTS) {
+            shadowOf(AccountManager.get(app)).addAccount(new Account(account, "com.google"));
+        }
+
+        mExtension = Robolectric.buildService(TestExtension.class).create().get();
+        mExtension.onInitialize(false);
+        mExtension.onUpdateData(DashClockExtension.UPDATE_REASON_INITIAL);
+    }
+
+    @After
+    public void tearDown() {
+        mExtension.onDestroy();
+    }
+
+    /**
+     * A Gmail package whose labels provider can be read, see {@link InboxContract#canReadLabels}.
+     */
+    private static PackageInfo createGmailPackage() {
+        PermissionInfo permission = new PermissionInfo();
+        permission.name = InboxContract.PERMISSION;
+        permission.protectionLevel = PermissionInfo.PROTECTION_DANGEROUS;
+
+        ProviderInfo provider = new ProviderInfo();
+        provider.authority = InboxContract.AUTHORITY;
+        provider.readPermission = InboxContract.PERMISSION;
+        provider.packageName = InboxContract.PACKAGE;
+
+        PackageInfo info = new PackageInfo();
+        info.packageName = InboxContract.PACKAGE;
+        info.permissions = new PermissionInfo[]{permission};
+        info.providers = new ProviderInfo[]{provider};
+        return info;
+    }
+
+    @Test
+    public void initialUpdatePublishesEveryAccount() {
+        ExtensionData data = mExtension.getLastPublished();
+        assertNotNull(data);
+        assertTrue(data.visible());
+        assertEquals(String.valueOf(ACCOUNTS.length), data.status());
+        assertEquals(ACCOUNTS.length, mProvider.getQueryCount());
+        // DashClock watches at least one URI of each account
+        assertTrue(mExtension.watchedUris.length >= ACCOUNTS.length);
+    }
+
+    @Test
+    public void changeInOneAccountQueriesOnlyThatAccount() {
+        int queries = mProvider.getQueryCount();
+        mProvider.setUnread(ACCOUNTS[1], FakeLabelsProvider.FIRST_SECTION, 5);
+        RuntimeEnvironment.application.getContentResolver().notifyChange(
+                FakeLabelsProvider.labelUri(ACCOUNTS[1], FakeLabelsProvider.FIRST_SECTION), null);
+        ShadowLooper.idleMainLooper(MAX_LATENCY_MS);
+
+        assertEquals(queries + 1, mProvider.getQueryCount());
+        // The other accounts still count, from their cached values
+        assertEquals(String.valueOf(ACCOUNTS.length - 1 + 5), mExtension.getLastPublished().status());
+    }
+
+    @Test
+    public void sustainedLoad() {
+        LabelsLoadGenerator generator = new LabelsLoadGenerator(mProvider,
+                RuntimeEnvironment.application.getContentResolver(), 42);
+        generator.run(NOTIFICATIONS_PER_SECOND, LOAD_DURATION_MS, new LabelsLoadGenerator.Listener() {
+            @Override
+            public void onNotify(Uri uri) {
+                mExtension.onNotify();
+            }
+        });
+        // Let the accounts held back by their interval go through
+        ShadowLooper.idleMainLooper(MAX_LOADED_LATENCY_MS);
+
+        assertEquals(0, mExtension.getPendingCount());
+        long[] values = new long[PERCENTILES.length];
+        int samples = mExtension.latency.percentiles(PERCENTILES, values);
+        String results = "Notification to publish over " + samples + " notifications, "
+                + mExtension.published.size() + " publishes, " + mProvider.getQueryCount()
+                + " queries: p50=" + values[0] + "ms p95=" + values[1] + "ms p99=" + values[2] + "ms";
+
+        assertEquals(results, NOTIFICATIONS_PER_SECOND * LOAD_DURATION_MS / 1000, samples);
+        assertTrue(results, values[2] <= MAX_LOADED_LATENCY_MS);
+        // Coalescing must keep the refreshes well below the notification rate
+        assertTrue(results, mExtension.published.size() < samples / 10);
+    }
+
+    @Test
+    public void coldStartPublishesSnapshotBeforeQuerying() {
+        mExtension.onDestroy();
+        int queries = mProvider.getQueryCount();
+
+        mExtension = Robolectric.buildService(TestExtension.class).create().get();
+        mExtension.onInitialize(false);
+        ExtensionData data = mExtension.getLastPublished();
+        assertNotNull(data);
+        assertEquals(String.valueOf(ACCOUNTS.length), data.status());
+        assertEquals(queries, mProvider.getQueryCount());
+
+        // Then refreshed in the background
+        ShadowLooper.idleMainLooper(MAX_LATENCY_MS);
+        assertEquals(queries + ACCOUNTS.length, mProvider.getQueryCount());
+    }
+
+    @Test
+    public void missingLabelsTableHidesTheExtension() {
+        mProvider.setFailure(FakeLabelsProvider.Failure.NO_SUCH_TABLE);
+        mExtension.onUpdateData(DashClockExtension.UPDATE_REASON_MANUAL);
+        assertFalse(mExtension.getLastPublished().visible());
+
+        mProvider.setFailure(FakeLabelsProvider.Failure.NONE);
+        mExtension.onUpdateData(DashClockExtension.UPDATE_REASON_MANUAL);
+        assertTrue(mExtension.getLastPublished().visible());
+    }
+
+    @Test
+    public void permissionDenialHidesTheExtension() {
+        mProvider.setFailure(FakeLabelsProvider.Failure.PERMISSION_DENIAL);
+        mExtension.onUpdateData(DashClockExtension.UPDATE_REASON_MANUAL);
+        assertFalse(mExtension.getLastPublished().visible());
+    }
+}
@@ -0,0 +1,63 @@
+package gabilheri.com.inboxdashclock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Per-account intervals of {@link RefreshPolicy}, on a made-up clock.
+ */
+public class RefreshPolicyTest {
+
+    private static final String ACCOUNT = "one@gmail.com";
+    private static final long BASE_MS = 15 * 1000;
+    private static final long MAX_MS = 5 * 60 * 1000;
+
+    @Test
+    public void burstOfNotificationsCountsOnce() {
+        RefreshPolicy policy = new RefreshPolicy(BASE_MS, MAX_MS);
+        long now = 1000;
+        policy.onQueried(ACCOUNT, now);
+        // One sync touching the Inbox, a section, Unread...
+        for (int i = 0; i < 6; i++) {
+            policy.onChanged(ACCOUNT, now + 60 * 1000 + i);
+        }
+        assertEquals(BASE_MS, policy.getInterval(ACCOUNT));
+
+        // Then mail once a minute
+        now += 2 * 60 * 1000;
+        for (int mail = 0; mail < 10; mail++) {
+            policy.onQueried(ACCOUNT, now);
+            for (int i = 0; i < 6; i++) {
+                policy.onChanged(ACCOUNT, now + 60 * 1000 + i);
+            }
+            now += 60 * 1000 + BASE_MS;
+        }
+        assertEquals(BASE_MS, policy.getInterval(ACCOUNT));
+    }
+
+    @Test
+    public void accountThatKeepsChangingBacksOff() {
+        RefreshPolicy policy = new RefreshPolicy(BASE_MS, MAX_MS);
+        long now = 1000;
+        policy.onQueried(ACCOUNT, now);
+        policy.onChanged(ACCOUNT, now + 100);
+        // Changes right after each query of the previous one
+        for (int i = 0; i < 10; i++) {
+            now += policy.getInterval(ACCOUNT);
+            assertTrue(policy.isDue(ACCOUNT, now));
+            policy.onQueried(ACCOUNT, now);
+            policy.onChanged(ACCOUNT, now + 100);
+        }
+        assertEquals(MAX_MS, policy.getInterval(ACCOUNT));
+        assertFalse(policy.isDue(ACCOUNT, now + BASE_MS));
+
+        // Calms down
+        now += MAX_MS;
+        policy.onQueried(ACCOUNT, now);
+        policy.onChanged(ACCOUNT, now + 2 * MAX_MS + 1);
+        assertEquals(MAX_MS / 2, policy.getInterval(ACCOUNT));
+    }
+}
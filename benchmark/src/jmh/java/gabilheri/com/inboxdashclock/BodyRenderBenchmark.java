@@ -0,0 +1,79 @@
+package gabilheri.com.inboxdashclock;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the expanded body and deciding whether to publish it, once the labels
+ * were aggregated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BodyRenderBenchmark {
+
+    @Param({"1", "5", "20", "50"})
+    public int accounts;
+
+    @Param({"10", "2000"})
+    public int labelsPerAccount;
+
+    /** Whether counts change between two renders, or every refresh finds the same numbers. */
+    @Param({"false", "true"})
+    public boolean changing;
+
+    private LabelAggregator mAggregator;
+    private BodyRenderer mRenderer;
+    private PublishFilter mPublishFilter;
+    private int mIteration;
+
+    @Setup
+    public void setUp() {
+        SyntheticLabels labels = new SyntheticLabels(accounts, labelsPerAccount, 42);
+        mAggregator = new LabelAggregator();
+        mAggregator.begin(0);
+        for (int a = 0; a < accounts; a++) {
+            LabelAggregator.AccountCounts counts = mAggregator.beginAccount(labels.accounts[a]);
+            for (int l = 0; l < labelsPerAccount; l++) {
+                counts.addRow(new String(labels.canonicalNames[a][l], 0, labels.canonicalNameLengths[a][l]),
+                        labels.names[a][l], labels.unread[a][l]);
+            }
+            mAggregator.endAccount(counts);
+        }
+        mRenderer = new BodyRenderer(ExtensionData.MAX_EXPANDED_BODY_LENGTH);
+        mPublishFilter = new PublishFilter();
+    }
+
+    @Benchmark
+    public boolean render() {
+        final LabelAggregator aggregator = mAggregator;
+        final BodyRenderer renderer = mRenderer;
+        int offset = changing ? (mIteration++ & 1) : 0;
+
+        renderer.begin();
+        for (int i = 0; i < aggregator.getAccountCount(); i++) {
+            LabelAggregator.AccountCounts counts = aggregator.getAccount(i);
+            if (!renderer.addLine(counts.account, counts.getUnread() + offset)) {
+                break;
+            }
+        }
+        for (int slot = 0; slot < LabelAggregator.SLOT_COUNT; slot++) {
+            int unread = aggregator.getLabelUnread(slot);
+            if (unread > 0 && !renderer.addLine(aggregator.getLabelName(slot), unread + offset)) {
+                break;
+            }
+        }
+        int total = aggregator.getTotalUnread() + offset;
+        return mPublishFilter.shouldPublish(total > 0, Integer.toString(total), null, renderer.finish(), true);
+    }
+}
@@ -0,0 +1,95 @@
+package gabilheri.com.inboxdashclock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning the label rows of every account into the published totals, the way
+ * {@link InboxExtension} does for each update minus the provider queries.
+ * <p>
+ * Runs on synthetic labels, or replays the labels of a real device with
+ * {@code -p recording=<file>}, see {@link RecordedLabelSource}. The other parameters don't
+ * apply to a recording, pin them to a single value.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LabelAggregationBenchmark {
+
+    @Param({"1", "5", "20", "50"})
+    public int accounts;
+
+    @Param({"10", "100", "500", "2000"})
+    public int labelsPerAccount;
+
+    /** Hides Promos, so hidden label filtering is part of the measurement. */
+    @Param({"0", "16"})
+    public int hiddenMask;
+
+    /** Path of a label recording to replay instead of the synthetic labels. */
+    @Param({""})
+    public String recording;
+
+    private LabelSource mSource;
+    private String[] mAccounts;
+    private LabelAggregator mAggregator;
+    private LabelAggregator.AccountCounts[] mCounts;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (recording.isEmpty()) {
+            SyntheticLabels labels = new SyntheticLabels(accounts, labelsPerAccount, 42);
+            mSource = labels.toLabelSource();
+            mAccounts = labels.accounts;
+        } else {
+            InputStream in = new FileInputStream(recording);
+            try {
+                RecordedLabelSource source = RecordedLabelSource.read(in);
+                mSource = source;
+                mAccounts = source.getAccounts();
+            } finally {
+                in.close();
+            }
+        }
+        mAggregator = new LabelAggregator();
+        mCounts = new LabelAggregator.AccountCounts[mAccounts.length];
+        for (int i = 0; i < mAccounts.length; i++) {
+            mCounts[i] = new LabelAggregator.AccountCounts();
+        }
+    }
+
+    @Benchmark
+    public int aggregate() throws LabelSource.FetchException {
+        final String[] accounts = mAccounts;
+        final LabelAggregator aggregator = mAggregator;
+        aggregator.begin(hiddenMask);
+        LabelSource.Batch batch = mSource.fetch(accounts, true, true);
+        for (int a = 0; a < accounts.length; a++) {
+            LabelSource.Rows rows = batch.open(a);
+            if (rows == null) {
+                continue;
+            }
+            LabelAggregator.AccountCounts counts = mCounts[a];
+            counts.reset(accounts[a], hiddenMask);
+            try {
+                LabelsReader.read(rows, counts, null, true);
+            } finally {
+                rows.close();
+            }
+            aggregator.addAccount(counts);
+        }
+        batch.close();
+        return aggregator.getTotalUnread();
+    }
+}
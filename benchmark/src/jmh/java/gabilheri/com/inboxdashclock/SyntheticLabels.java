@@ -0,0 +1,73 @@
+package gabilheri.com.inboxdashclock;
+
+import java.util.Random;
+
+/**
+ * Synthetic labels tables shaped like the Gmail provider's: the system and sectioned inbox
+ * labels first, then user labels.
+ */
+final class SyntheticLabels {
+
+    private static final String[] SYSTEM_LABELS = {
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PRIORITY_INBOX,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PERSONAL,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_UPDATES,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_SOCIAL,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_GROUP,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PROMO,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_STARRED,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_SENT,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_DRAFTS,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_ALL_MAIL,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_SPAM,
+            InboxContract.Labels.LabelCanonicalNames.CANONICAL_NAME_TRASH,
+    };
+
+    final String[] accounts;
+    /** Canonical names, [account][row] */
+    final char[][][] canonicalNames;
+    final int[][] canonicalNameLengths;
+    final String[][] names;
+    final String[][] uris;
+    final int[][] unread;
+
+    SyntheticLabels(int accountCount, int labelsPerAccount, long seed) {
+        Random random = new Random(seed);
+        accounts = new String[accountCount];
+        canonicalNames = new char[accountCount][labelsPerAccount][];
+        canonicalNameLengths = new int[accountCount][labelsPerAccount];
+        names = new String[accountCount][labelsPerAccount];
+        uris = new String[accountCount][labelsPerAccount];
+        unread = new int[accountCount][labelsPerAccount];
+
+        for (int a = 0; a < accountCount; a++) {
+            accounts[a] = "user" + a + "@gmail.com";
+            for (int l = 0; l < labelsPerAccount; l++) {
+                String canonicalName = l < SYSTEM_LABELS.length ? SYSTEM_LABELS[l] : "Label " + l;
+                // Cursors copy into a buffer larger than the name, mimic that
+                char[] buffer = new char[64];
+                canonicalName.getChars(0, canonicalName.length(), buffer, 0);
+                canonicalNames[a][l] = buffer;
+                canonicalNameLengths[a][l] = canonicalName.length();
+                names[a][l] = canonicalName.startsWith("^") ? "Name" + l : canonicalName;
+                uris[a][l] = "content://" + InboxContract.AUTHORITY + "/" + accounts[a] + "/label/" + l;
+                unread[a][l] = random.nextInt(50);
+            }
+        }
+    }
+
+    /**
+     * @return the same labels as a {@link LabelSource}
+     */
+    MemoryLabelSource toLabelSource() {
+        MemoryLabelSource source = new MemoryLabelSource();
+        for (int a = 0; a < accounts.length; a++) {
+            for (int l = 0; l < names[a].length; l++) {
+                source.addLabel(accounts[a], new String(canonicalNames[a][l], 0, canonicalNameLengths[a][l]),
+                        names[a][l], uris[a][l], unread[a][l]);
+            }
+        }
+        return source;
+    }
+}